@@ -0,0 +1,48 @@
+package org.kohsuke.maven.rewrite;
+
+/**
+ * Generates documents for benchmarks.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class Documents {
+    private Documents() {}
+
+    /**
+     * POM with the given number of dependencies.
+     */
+    static String pom(int dependencies) {
+        StringBuilder b = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n<project>\n  <version>1.0</version>\n  <dependencies>\n");
+        for (int i=0; i<dependencies; i++)
+            b.append("    <dependency>\n")
+             .append("      <!-- dependency ").append(i).append(" -->\n")
+             .append("      <groupId>org.example</groupId>\n")
+             .append("      <artifactId>a").append(i).append("</artifactId>\n")
+             .append("      <version>1.").append(i).append("</version>\n")
+             .append("    </dependency>\n");
+        b.append("  </dependencies>\n</project>\n");
+        return b.toString();
+    }
+
+    /**
+     * The root element with the given number of children.
+     */
+    static String wide(int n) {
+        StringBuilder b = new StringBuilder("<root>\n");
+        for (int i=0; i<n; i++)
+            b.append("  <e><v>").append(i).append("</v></e>\n");
+        return b.append("</root>\n").toString();
+    }
+
+    /**
+     * Elements nested to the given depth.
+     */
+    static String deep(int n) {
+        StringBuilder b = new StringBuilder();
+        for (int i=0; i<n; i++)
+            b.append("<e><v>").append(i).append("</v>\n");
+        for (int i=0; i<n; i++)
+            b.append("</e>\n");
+        return b.toString();
+    }
+}
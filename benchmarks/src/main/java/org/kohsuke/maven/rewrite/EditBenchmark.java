@@ -0,0 +1,57 @@
+package org.kohsuke.maven.rewrite;
+
+import org.kohsuke.maven.rewrite.edit.InsertInElement;
+import org.kohsuke.maven.rewrite.edit.ReplaceElementText;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Built-in edits that modify every matching element of wide and deep trees.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EditBenchmark {
+    @Param({"wide", "deep"})
+    public String shape;
+
+    @Param({"1000"})
+    public int size;
+
+    private String doc;
+
+    @Setup
+    public void setUp() {
+        doc = shape.equals("wide") ? Documents.wide(size) : Documents.deep(size);
+    }
+
+    @Benchmark
+    public boolean insertInElement() throws Exception {
+        return new XmlPatcher(new PieceTableBuffer(doc)).scan(new InsertInElement(PathMatchers.compile("//e")) {
+            @Override
+            protected String insert() {
+                return "<w/>";
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean replaceElementText() throws Exception {
+        return new XmlPatcher(new PieceTableBuffer(doc)).scan(new ReplaceElementText(PathMatchers.compile("//v")) {
+            @Override
+            public String replace(String current) {
+                return current+"0";
+            }
+        });
+    }
+}
@@ -0,0 +1,78 @@
+package org.kohsuke.maven.rewrite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Mark#replace(String)} while there are many other live marks to keep up to date.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MarkBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int marks;
+
+    private Mark[] targets;
+    private int i;
+
+    /**
+     * Indices of {@link #targets} in a random order.
+     */
+    private int[] shuffled;
+    private int j;
+
+    @Setup
+    public void setUp() {
+        StringBuilder doc = new StringBuilder();
+        for (int i=0; i<marks; i++)
+            doc.append("<a>x</a>\n");
+        XmlPatcher patcher = new XmlPatcher(new PieceTableBuffer(doc.toString()));
+
+        // one mark per element, and edit them all in turn
+        targets = new Mark[marks];
+        for (int i=0; i<marks; i++)
+            targets[i] = new Mark(patcher, i*9+3, i*9+4);
+
+        shuffled = new int[marks];
+        for (int i=0; i<marks; i++)
+            shuffled[i] = i;
+        Random r = new Random(0);
+        for (int i=marks-1; i>0; i--) {
+            int k = r.nextInt(i+1);
+            int t = shuffled[i];
+            shuffled[i] = shuffled[k];
+            shuffled[k] = t;
+        }
+    }
+
+    @Benchmark
+    public void replace() {
+        Mark m = targets[i];
+        // alternate between the two lengths so that the document doesn't keep growing
+        m.replace(m.length()==1 ? "yy" : "x");
+        i = (i+1)%targets.length;
+    }
+
+    /**
+     * Same as {@link #replace()}, except that the marks are edited out of the document order,
+     * which is the worst case for keeping track of {@link XmlPatcher#getChanges()}.
+     */
+    @Benchmark
+    public void replaceOutOfOrder() {
+        Mark m = targets[shuffled[j]];
+        m.replace(m.length()==1 ? "yy" : "x");
+        j = (j+1)%shuffled.length;
+    }
+}
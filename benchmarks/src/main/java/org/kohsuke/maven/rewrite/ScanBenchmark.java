@@ -0,0 +1,49 @@
+package org.kohsuke.maven.rewrite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link XmlPatcher#scan(XmlVisitor)} that doesn't edit anything.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScanBenchmark {
+    /**
+     * Number of dependencies in the POM: small, medium, and huge.
+     */
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    /**
+     * Parse with the cursor, through the {@link javax.xml.stream.XMLEventReader} view, or with the native tokenizer.
+     */
+    @Param({"cursor", "events", "tokenizer"})
+    public String engine;
+
+    private String doc;
+
+    @Setup
+    public void setUp() {
+        doc = Documents.pom(size);
+    }
+
+    @Benchmark
+    public boolean scan() throws Exception {
+        XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(doc));
+        xml.setEventReaderView(engine.equals("events"));
+        xml.setNativeTokenizer(engine.equals("tokenizer"));
+        return xml.scan(new XmlVisitor() {});
+    }
+}
@@ -0,0 +1,48 @@
+package org.kohsuke.maven.rewrite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.events.StartElement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building {@link XmlPath}s for a typical POM path, as {@link XmlPatcher} does for every start tag.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class XmlPathBenchmark {
+    private final NameTable names = new NameTable();
+    private StartElement[] tags;
+
+    @Setup
+    public void setUp() {
+        XMLEventFactory f = XMLEventFactory.newInstance();
+        String[] path = {"project", "build", "plugins", "plugin", "configuration", "excludes", "exclude"};
+        tags = new StartElement[path.length];
+        for (int i=0; i<path.length; i++)
+            tags[i] = f.createStartElement("", "", path[i]);
+    }
+
+    @Benchmark
+    public XmlPath construct() {
+        XmlPath p = null;
+        for (StartElement t : tags)
+            p = new XmlPath(p, names, t);
+        return p;
+    }
+
+    @Benchmark
+    public boolean constructAndMatch() {
+        return construct().matches("/project/build/plugins/plugin/configuration/excludes/exclude");
+    }
+}
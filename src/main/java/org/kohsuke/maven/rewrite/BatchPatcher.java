@@ -0,0 +1,242 @@
+package org.kohsuke.maven.rewrite;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.MapMaker;
+
+import javax.xml.stream.XMLInputFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Patches many files concurrently, by running the same kind of visitor over each of them.
+ *
+ * <p>
+ * Every file gets its own {@link XmlPatcher} and its own visitor obtained from the visitor factory,
+ * so visitors are never shared between threads. All the patchers share one {@link XMLInputFactory}.
+ * Modified files are written back in place.
+ *
+ * <p>
+ * This class doesn't own the executor, so it's up to the caller to shut it down.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class BatchPatcher {
+    private final ExecutorService executor;
+    private XMLInputFactory factory = XmlPatcher.getDefaultFactory();
+    private ResultCache cache;
+
+    public BatchPatcher(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the factory shared by all the patchers. It must be safe to create parsers from it concurrently.
+     */
+    public void setFactory(XMLInputFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Sets the cache shared by all the patchers.
+     *
+     * @see XmlPatcher#setResultCache(ResultCache)
+     */
+    public void setResultCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Patches all the files of the given name in the given directory and its descendants.
+     * Symbolic links to directories are followed, but each directory is only searched once.
+     */
+    public Report patchTree(File dir, String fileName, Supplier<? extends XmlVisitor> visitors) throws IOException, InterruptedException {
+        List<File> files = new ArrayList<File>();
+        find(dir, fileName, new HashSet<File>(), files);
+        return patch(files, visitors);
+    }
+
+    /**
+     * @param visited
+     *      Canonical paths of the directories searched so far, so that a link back to an ancestor doesn't send us
+     *      around in circles.
+     */
+    private static void find(File dir, String fileName, Set<File> visited, List<File> r) throws IOException {
+        if (!visited.add(dir.getCanonicalFile()))
+            return;
+        File[] children = dir.listFiles();
+        if (children==null)
+            return;
+        for (File c : children) {
+            if (c.isDirectory())
+                find(c, fileName, visited, r);
+            else if (c.getName().equals(fileName))
+                r.add(c);
+        }
+    }
+
+    /**
+     * Patches the given files, and waits for all of them to complete.
+     *
+     * @param visitors
+     *      Called once per file, from the calling thread, so it doesn't have to be thread-safe.
+     *      It must return a new visitor every time.
+     */
+    public Report patch(Collection<File> files, Supplier<? extends XmlVisitor> visitors) throws InterruptedException {
+        long start = System.nanoTime();
+
+        // weak keys are compared by identity, and don't keep the visitors, and through them the documents, alive
+        Map<XmlVisitor,Boolean> seen = new MapMaker().weakKeys().makeMap();
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(files.size());
+        try {
+            for (final File f : files) {
+                final XmlVisitor v = visitors.get();
+                if (seen.put(v,Boolean.TRUE)!=null)
+                    throw new IllegalStateException("Visitor factory returned the same visitor twice: "+v);
+
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return patch(f, v);
+                    }
+                }));
+            }
+
+            List<Result> results = new ArrayList<Result>(futures.size());
+            for (Future<Result> r : futures)
+                results.add(r.get());
+            return new Report(results, System.nanoTime()-start);
+        } catch (ExecutionException e) {
+            // patch(File,XmlVisitor) catches all the exceptions, so this is an Error
+            throw (Error)e.getCause();
+        } finally {
+            for (Future<Result> r : futures)
+                r.cancel(true);
+        }
+    }
+
+    private Result patch(File f, XmlVisitor v) {
+        long start = System.nanoTime();
+        try {
+            XmlPatcher p = new XmlPatcher(f);
+            p.setFactory(factory);
+            p.setResultCache(cache);
+            boolean modified = p.scan(v);
+            if (modified)
+                p.writeTo(f);
+            return new Result(f, modified ? Status.MODIFIED : Status.UNCHANGED, null, System.nanoTime()-start);
+        } catch (Exception e) {
+            return new Result(f, Status.FAILED, e, System.nanoTime()-start);
+        } finally {
+            v.detach();
+        }
+    }
+
+    public enum Status {
+        MODIFIED, UNCHANGED, FAILED
+    }
+
+    /**
+     * Outcome of patching one file.
+     */
+    public static final class Result {
+        private final File file;
+        private final Status status;
+        private final Exception error;
+        private final long time;
+
+        Result(File file, Status status, Exception error, long time) {
+            this.file = file;
+            this.status = status;
+            this.error = error;
+            this.time = time;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * The reason of the failure, or null unless {@link #getStatus()} is {@link Status#FAILED}.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * Time it took to patch this file, in nanoseconds.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return file+": "+status+(error!=null ? " ("+error+")" : "");
+        }
+    }
+
+    /**
+     * Outcome of the whole batch.
+     */
+    public static final class Report {
+        private final List<Result> results;
+        private final long elapsed;
+
+        Report(List<Result> results, long elapsed) {
+            this.results = Collections.unmodifiableList(results);
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * Results in the same order as the files are given.
+         */
+        public List<Result> getResults() {
+            return results;
+        }
+
+        public List<Result> getResults(Status status) {
+            List<Result> r = new ArrayList<Result>();
+            for (Result x : results)
+                if (x.status==status)
+                    r.add(x);
+            return r;
+        }
+
+        /**
+         * Wall clock time of the whole batch, in nanoseconds.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Sum of the time spent on individual files, in nanoseconds.
+         */
+        public long getTotalTime() {
+            long t = 0;
+            for (Result r : results)
+                t += r.time;
+            return t;
+        }
+
+        @Override
+        public String toString() {
+            return getResults(Status.MODIFIED).size()+" modified, "+getResults(Status.UNCHANGED).size()+" unchanged, "
+                    +getResults(Status.FAILED).size()+" failed in "+(elapsed/1000000)+"ms";
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.kohsuke.maven.rewrite;
+
+import java.util.List;
+
+/**
+ * State of a document that {@link XmlPatcher#rollback(Checkpoint)} can go back to.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see XmlPatcher#checkpoint()
+ */
+public final class Checkpoint {
+    /**
+     * Number of inverse edits in the undo log when this checkpoint was taken.
+     */
+    /*package*/ final int undoSize;
+
+    /*package*/ final boolean modified;
+
+    /**
+     * The journal of the scan this checkpoint was taken in, and its size at that time.
+     */
+    /*package*/ final List<Edit> journal;
+    /*package*/ final int journalSize;
+
+    /**
+     * Logs of the changes to the document, and copies of what they had at that time, which share their entries
+     * with the logs, so taking them doesn't depend on the number of changes.
+     * Undoing edits adds to the logs like any other edit, so the logs are restored from the copies afterward,
+     * as long as they are still the same logs.
+     */
+    /*package*/ final EditLog changes, changesCopy;
+    /*package*/ final EditLog recording, recordingCopy;
+
+    Checkpoint(int undoSize, boolean modified, List<Edit> journal, EditLog changes, EditLog recording) {
+        this.undoSize = undoSize;
+        this.modified = modified;
+        this.journal = journal;
+        this.journalSize = journal!=null ? journal.size() : 0;
+        this.changes = changes;
+        this.changesCopy = changes.copy();
+        this.recording = recording;
+        this.recordingCopy = recording!=null ? recording.copy() : null;
+    }
+}
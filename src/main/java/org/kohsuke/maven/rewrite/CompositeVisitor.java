@@ -0,0 +1,152 @@
+package org.kohsuke.maven.rewrite;
+
+import org.kohsuke.maven.rewrite.PatcherMetrics.Callback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link XmlVisitor} that runs multiple visitors in a single scan.
+ *
+ * <p>
+ * Visitors are called in the order they are given, for both {@link #startElement()} and {@link #endElement()}.
+ * Each visitor sees the document as edited by the visitors that are called before it, so when two visitors
+ * edit the same region, the edit of the later visitor is applied on top of that of the earlier one.
+ *
+ * <p>
+ * A visitor that calls {@link #skipSubtree()} or {@link #stop()} isn't called for the part of the document
+ * it doesn't want to see, but the others still are. The skip or the stop takes effect on the scan itself
+ * only when all the visitors agree to it.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see XmlPatcher#scan(XmlVisitor...)
+ */
+public class CompositeVisitor extends XmlVisitor {
+    private final List<XmlVisitor> visitors;
+
+    /**
+     * For each visitor, the element whose contents it is skipping, if any.
+     */
+    private final XmlPath[] skipping;
+
+    private final boolean[] stopped;
+
+    public CompositeVisitor(XmlVisitor... visitors) {
+        this(Arrays.asList(visitors));
+    }
+
+    public CompositeVisitor(Collection<? extends XmlVisitor> visitors) {
+        this.visitors = Collections.unmodifiableList(new ArrayList<XmlVisitor>(visitors));
+        this.skipping = new XmlPath[this.visitors.size()];
+        this.stopped = new boolean[this.visitors.size()];
+    }
+
+    public List<XmlVisitor> getVisitors() {
+        return visitors;
+    }
+
+    /**
+     * Combines the fingerprints of the visitors, or returns null if any of them doesn't have one.
+     */
+    @Override
+    public String getFingerprint() {
+        StringBuilder buf = new StringBuilder(getClass().getName());
+        for (XmlVisitor v : visitors) {
+            String f = v.getFingerprint();
+            if (f==null)
+                return null;
+            buf.append('\n').append(f.length()).append(':').append(f);
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public void startDocument(XmlPatcher patcher) {
+        super.startDocument(patcher);
+        Arrays.fill(skipping, null);
+        Arrays.fill(stopped, false);
+        boolean timed = patcher.getMetrics()!=null;
+        for (int i=0; i<skipping.length; i++) {
+            XmlVisitor v = visitors.get(i);
+            if (timed)
+                patcher.call(v, Callback.START_DOCUMENT);
+            else
+                v.startDocument(patcher);
+            stopped[i] = v.takeFlow()==Flow.STOP;
+        }
+        if (allStopped())
+            stop();
+    }
+
+    @Override
+    /*package*/ void detach() {
+        super.detach();
+        for (XmlVisitor v : visitors)
+            v.detach();
+    }
+
+    @Override
+    public void startElement() {
+        XmlPatcher p = getPatcher();
+        boolean timed = p.getMetrics()!=null;
+        boolean skip = true;
+        for (int i=0; i<skipping.length; i++) {
+            if (stopped[i])
+                continue;
+            if (skipping[i]==null) {
+                XmlVisitor v = visitors.get(i);
+                if (timed)
+                    p.call(v, Callback.START_ELEMENT);
+                else
+                    v.startElement();
+                switch (v.takeFlow()) {
+                case STOP:
+                    stopped[i] = true;
+                    continue;
+                case SKIP_SUBTREE:
+                    skipping[i] = getPath();
+                    break;
+                }
+            }
+            if (skipping[i]==null)
+                skip = false;
+        }
+        if (allStopped())
+            stop();
+        else if (skip)
+            skipSubtree();
+    }
+
+    @Override
+    public void endElement() {
+        XmlPatcher p = getPatcher();
+        boolean timed = p.getMetrics()!=null;
+        for (int i=0; i<skipping.length; i++) {
+            if (stopped[i])
+                continue;
+            if (skipping[i]!=null) {
+                if (skipping[i]!=getPath())
+                    continue;   // still inside the skipped element
+                skipping[i] = null;
+            }
+            XmlVisitor v = visitors.get(i);
+            if (timed)
+                p.call(v, Callback.END_ELEMENT);
+            else
+                v.endElement();
+            stopped[i] = v.takeFlow()==Flow.STOP;
+        }
+        if (allStopped())
+            stop();
+    }
+
+    private boolean allStopped() {
+        for (boolean b : stopped)
+            if (!b)
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+package org.kohsuke.maven.rewrite;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Text of the XML document that {@link XmlPatcher} is editing.
+ *
+ * <p>
+ * All the edits made through {@link Mark}s end up as {@link #replace(int, int, String)} calls on this buffer,
+ * so the data structure behind it determines how expensive an edit is. {@link PieceTableBuffer} keeps the
+ * cost of an edit logarithmic to the number of edits made so far, while {@link StringBuilderBuffer} edits
+ * a caller-supplied {@link StringBuilder} in place.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see XmlPatcher#XmlPatcher(DocumentBuffer)
+ */
+public abstract class DocumentBuffer {
+    /**
+     * Number of characters in the document.
+     */
+    public abstract int length();
+
+    public abstract char charAt(int index);
+
+    /**
+     * Gets the text in the range [start,end).
+     */
+    public abstract String substring(int start, int end);
+
+    /**
+     * Replaces the text in the range [start,end) by the specified text.
+     */
+    public abstract void replace(int start, int end, String replacement);
+
+    /**
+     * Applies a batch of edits at once.
+     *
+     * @param edits
+     *      Non-overlapping edits sorted by their positions, whose offsets refer to the current content.
+     */
+    public void apply(List<Edit> edits) {
+        // going backward keeps the offsets of the remaining edits valid
+        for (int i=edits.size()-1; i>=0; i--) {
+            Edit e = edits.get(i);
+            replace(e.getStart(), e.getEnd(), e.getReplacement());
+        }
+    }
+
+    /**
+     * Number of characters that {@link #replace(int, int, String)} copies or shifts to make the given edit.
+     * Only used for {@link PatcherMetrics}.
+     *
+     * <p>
+     * The default implementation assumes that the text is kept in one contiguous array, as in {@link StringBuilder}.
+     */
+    public int getCharactersMoved(int start, int end, int replacementLength) {
+        return replacementLength + (replacementLength!=end-start ? length()-end : 0);
+    }
+
+    /**
+     * Number of characters that {@link #apply(List)} copies or shifts to make the given edits.
+     * Only used for {@link PatcherMetrics}.
+     */
+    public int getCharactersMoved(List<Edit> edits) {
+        int n = 0;
+        int len = length();
+        for (int i=edits.size()-1; i>=0; i--) {
+            Edit e = edits.get(i);
+            int r = e.getReplacement().length();
+            n += r + (e.getDelta()!=0 ? len-e.getEnd() : 0);
+            len += e.getDelta();
+        }
+        return n;
+    }
+
+    /**
+     * Finds the first occurrence of the given string in the document.
+     *
+     * <p>
+     * The default implementation reads the document through {@link #openReader()}.
+     *
+     * @return
+     *      -1 if not found.
+     */
+    public int indexOf(String str) {
+        int n = str.length();
+        if (n==0)
+            return 0;
+        char first = str.charAt(0);
+        char[] buf = new char[Math.max(8192, n*2)];
+        int len = 0;    // number of characters in buf
+        int base = 0;   // offset of buf[0] in the document
+        Reader r = openReader();
+        try {
+            int k;
+            while ((k=r.read(buf, len, buf.length-len))>=0) {
+                len += k;
+                int last = len-n;
+                for (int i=0; i<=last; i++) {
+                    if (buf[i]!=first)
+                        continue;
+                    int j = 1;
+                    while (j<n && buf[i+j]==str.charAt(j))
+                        j++;
+                    if (j==n)
+                        return base+i;
+                }
+                // a match may start in the last n-1 characters, so keep them for the next round
+                int keep = Math.min(n-1, len);
+                System.arraycopy(buf, len-keep, buf, 0, keep);
+                base += len-keep;
+                len = keep;
+            }
+            return -1;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            IOUtil.close(r);
+        }
+    }
+
+    /**
+     * Writes the whole document to the given writer.
+     */
+    public void writeTo(Writer w) throws IOException {
+        w.write(toString());
+    }
+
+    /**
+     * Opens a reader that reads the document as of now.
+     *
+     * The reader must not be affected by edits made after this method returns, as the parser reads ahead
+     * of the part of the document that's being edited.
+     */
+    public Reader openReader() {
+        return new StringReader(toString());
+    }
+
+    /**
+     * Opens a reader like {@link #openReader()} does, except that it starts reading from the given position.
+     *
+     * @return
+     *      null if this buffer can't do this without copying the rest of the document, which is what
+     *      the default implementation does.
+     */
+    public Reader openReader(int start) {
+        return null;
+    }
+
+    /**
+     * Takes a read-only copy of the current content, which can be read from other threads while this buffer
+     * keeps changing. Calling {@link #replace(int, int, String)} on the copy throws
+     * {@link UnsupportedOperationException}.
+     *
+     * <p>
+     * The default implementation copies the whole text.
+     */
+    public DocumentBuffer snapshot() {
+        return new PieceTableBuffer(toString()).snapshot();
+    }
+
+    /**
+     * Returns the whole document as a string.
+     */
+    @Override
+    public String toString() {
+        return substring(0,length());
+    }
+}
@@ -0,0 +1,62 @@
+package org.kohsuke.maven.rewrite;
+
+import java.util.Comparator;
+
+/**
+ * Replacement of the range [start,end) of a document by a text.
+ *
+ * <p>
+ * Offsets refer to the document before any of the edits in the same batch are applied.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see XmlPatcher#getEdits()
+ */
+public final class Edit {
+    private final int start, end;
+    private final String replacement;
+
+    public Edit(int start, int end, String replacement) {
+        if (start<0 || start>end)
+            throw new IllegalArgumentException(start+","+end);
+        this.start = start;
+        this.end = end;
+        this.replacement = replacement;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public String getReplacement() {
+        return replacement;
+    }
+
+    /**
+     * By how many characters does this edit change the length of the document?
+     */
+    public int getDelta() {
+        return replacement.length()-(end-start);
+    }
+
+    @Override
+    public String toString() {
+        return "["+start+","+end+")->"+replacement;
+    }
+
+    /**
+     * Orders edits by their position. Insertions come before a replacement that starts at the same position.
+     */
+    /*package*/ static final Comparator<Edit> POSITION = new Comparator<Edit>() {
+        public int compare(Edit a, Edit b) {
+            if (a.start!=b.start)
+                return a.start<b.start ? -1 : 1;
+            if (a.end!=b.end)
+                return a.end<b.end ? -1 : 1;
+            return 0;
+        }
+    };
+}
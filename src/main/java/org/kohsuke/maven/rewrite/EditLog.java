@@ -0,0 +1,238 @@
+package org.kohsuke.maven.rewrite;
+
+/**
+ * Regions of the document that have changed since some point, in the coordinates of the document at that point.
+ *
+ * <p>
+ * Each entry says that the range [start,end) of the original document is now replaced by some text of the given
+ * length. Entries are sorted and don't overlap. Edits that overlap or touch each other are merged into one entry,
+ * so an entry can be larger than any of the edits that made it.
+ *
+ * <p>
+ * Entries are kept in a treap, where each node knows the sum of the deltas in its subtree, so that an edit
+ * finds the entries it touches in logarithmic time, no matter in which order the document is edited.
+ * Nodes are never modified, and an edit creates new nodes along the paths it changes instead, so a copy of the log
+ * shares all the nodes with the original, and takes constant time.
+ * Entries are accessed by their index only after the edits are done, so the index view is flattened into an array
+ * on the first access after an edit.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class EditLog {
+    private static final class Node {
+        /**
+         * The range [start,end) of the original document, and the length of the text that replaces it.
+         */
+        final int start, end, length;
+        final int priority;
+        final Node left, right;
+        /**
+         * Sum of the deltas of the entries in this subtree.
+         */
+        final int delta;
+        /**
+         * Number of entries in this subtree.
+         */
+        final int size;
+
+        Node(int start, int end, int length, int priority, Node left, Node right) {
+            this.start = start;
+            this.end = end;
+            this.length = length;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.delta = ownDelta()+EditLog.delta(left)+EditLog.delta(right);
+            this.size = 1+EditLog.size(left)+EditLog.size(right);
+        }
+
+        /**
+         * Same entry as the given node, with different children.
+         */
+        Node(Node n, Node left, Node right) {
+            this(n.start, n.end, n.length, n.priority, left, right);
+        }
+
+        int ownDelta() {
+            return length-(end-start);
+        }
+    }
+
+    private Node root;
+
+    private int seed = 0x2545F491;
+
+    /**
+     * start, end, and new length of each entry, in the order of their positions, or null if it needs to be rebuilt.
+     */
+    private int[] data;
+
+    int size() {
+        return size(root);
+    }
+
+    boolean isEmpty() {
+        return root==null;
+    }
+
+    /**
+     * By how many characters do all the entries change the length of the document?
+     */
+    int delta() {
+        return delta(root);
+    }
+
+    void clear() {
+        root = null;
+        data = null;
+    }
+
+    EditLog copy() {
+        EditLog r = new EditLog();
+        r.restore(this);
+        return r;
+    }
+
+    /**
+     * Makes this log the same as the given one.
+     */
+    void restore(EditLog from) {
+        root = from.root;
+        data = from.data;   // never modified either, only replaced
+    }
+
+    /**
+     * Start of the i-th entry in the original document.
+     */
+    int start(int i) {
+        return data()[i*3];
+    }
+
+    int end(int i) {
+        return data()[i*3+1];
+    }
+
+    /**
+     * Length of the text that replaces the i-th entry.
+     */
+    int length(int i) {
+        return data()[i*3+2];
+    }
+
+    /**
+     * By how many characters does the i-th entry change the length of the document?
+     */
+    int delta(int i) {
+        return length(i)-(end(i)-start(i));
+    }
+
+    private int[] data() {
+        if (data==null) {
+            data = new int[size()*3];
+            flatten(root, 0);
+        }
+        return data;
+    }
+
+    private int flatten(Node n, int i) {
+        for (; n!=null; n=n.right) {
+            i = flatten(n.left, i);
+            data[i++] = n.start;
+            data[i++] = n.end;
+            data[i++] = n.length;
+        }
+        return i;
+    }
+
+    /**
+     * Records that the range [start,end) of the current document is replaced by a text of the given length.
+     */
+    void record(int start, int end, int length) {
+        data = null;
+
+        // entries before the edit, entries that overlap or touch the edit, and entries after the edit
+        Node[] x = splitByEnd(root, start, 0);
+        int d = delta(x[0]);    // sum of the deltas of the entries before the edit
+        Node[] y = splitByStart(x[1], end, d);
+        Node touched = y[0];
+
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+
+        Node n;
+        if (touched==null) {
+            n = new Node(start-d, end-d, length, seed, null, null);
+        } else {
+            // merge the touched entries with the edit
+            Node first = touched, last = touched;
+            while (first.left!=null)
+                first = first.left;
+            while (last.right!=null)
+                last = last.right;
+            int dj = d+delta(touched);  // sum of the deltas of the entries up to the last touched one
+            int cs = Math.min(start, first.start+d);
+            int ce = Math.max(end, last.start+(dj-last.ownDelta())+last.length);
+            int os = Math.min(start-d, first.start);
+            int oe = Math.max(end-dj, last.end);
+            n = new Node(os, oe, (ce-cs)+length-(end-start), seed, null, null);
+        }
+        root = merge(merge(x[0], n), y[1]);
+    }
+
+    /**
+     * Splits the tree into the entries that end before the given offset of the current document and the rest.
+     *
+     * @param d
+     *      Sum of the deltas of the entries before this subtree.
+     */
+    private static Node[] splitByEnd(Node n, int offset, int d) {
+        if (n==null)
+            return new Node[2];
+        int dn = d+delta(n.left);
+        Node[] x;
+        if (n.start+dn+n.length<offset) {
+            x = splitByEnd(n.right, offset, dn+n.ownDelta());
+            x[0] = new Node(n, n.left, x[0]);
+        } else {
+            x = splitByEnd(n.left, offset, d);
+            x[1] = new Node(n, x[1], n.right);
+        }
+        return x;
+    }
+
+    /**
+     * Splits the tree into the entries that start at or before the given offset of the current document and the rest.
+     */
+    private static Node[] splitByStart(Node n, int offset, int d) {
+        if (n==null)
+            return new Node[2];
+        int dn = d+delta(n.left);
+        Node[] x;
+        if (n.start+dn<=offset) {
+            x = splitByStart(n.right, offset, dn+n.ownDelta());
+            x[0] = new Node(n, n.left, x[0]);
+        } else {
+            x = splitByStart(n.left, offset, d);
+            x[1] = new Node(n, x[1], n.right);
+        }
+        return x;
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a==null)    return b;
+        if (b==null)    return a;
+        if (a.priority>b.priority)
+            return new Node(a, a.left, merge(a.right, b));
+        else
+            return new Node(b, merge(a, b.left), b.right);
+    }
+
+    private static int delta(Node n) {
+        return n==null ? 0 : n.delta;
+    }
+
+    private static int size(Node n) {
+        return n==null ? 0 : n.size;
+    }
+}
@@ -0,0 +1,517 @@
+package org.kohsuke.maven.rewrite;
+
+import org.codehaus.stax2.XMLStreamReader2;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Kinds and positions of the events of a document, so that {@link XmlPatcher#scan(XmlVisitor)} can replay them
+ * without parsing the document again.
+ *
+ * <p>
+ * Events are kept in a single int array, with their kinds, [start,end) offsets as {@link XmlPatcher} computes them,
+ * the ids of the element names, and the links between matching start and end tags.
+ *
+ * <p>
+ * When the document is edited, the index is brought up to date by {@link #rebuild(EditLog, DocumentBuffer, NameTable, XMLInputFactory)},
+ * which only parses the contents of the elements that enclose the edits, and shifts the rest.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class EventIndex {
+    private static final int KIND=0, START=1, END=2, NAME=3, PARENT=4, MATCH=5, STRIDE=6;
+
+    private int[] data;
+    private int size;
+
+    /**
+     * Length of the document that this index describes.
+     */
+    private int length;
+
+    /**
+     * Start tags that are not closed yet, while events are added.
+     */
+    private int[] stack = new int[16];
+    private int sp;
+    private boolean broken;
+
+    EventIndex() {
+        this(64);
+    }
+
+    private EventIndex(int capacity) {
+        data = new int[capacity*STRIDE];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int kind(int i) {
+        return data[i*STRIDE+KIND];
+    }
+
+    int start(int i) {
+        return data[i*STRIDE+START];
+    }
+
+    int end(int i) {
+        return data[i*STRIDE+END];
+    }
+
+    /**
+     * {@link NameTable} id of the element name, or -1 if this is not an element.
+     */
+    int nameId(int i) {
+        return data[i*STRIDE+NAME];
+    }
+
+    /**
+     * Index of the start tag of the element that contains this event (excluding the element that a start/end tag
+     * belongs to), or -1 if the event is outside the root element.
+     */
+    int parent(int i) {
+        return data[i*STRIDE+PARENT];
+    }
+
+    /**
+     * Index of the end tag that matches this start tag, and vice versa.
+     */
+    int match(int i) {
+        return data[i*STRIDE+MATCH];
+    }
+
+    static boolean isCharacters(int kind) {
+        return kind==XMLStreamConstants.CHARACTERS || kind==XMLStreamConstants.CDATA || kind==XMLStreamConstants.SPACE;
+    }
+
+    /**
+     * Gets the character offset where the current token of the parser starts.
+     */
+    static int offset(XMLStreamReader r) {
+        if (r instanceof XMLStreamReader2)
+            return (int)((XMLStreamReader2)r).getLocationInfo().getStartingCharOffset();   // doesn't create a Location
+        return r.getLocation().getCharacterOffset();
+    }
+
+    void add(int kind, int start, int end, int nameId) {
+        if ((size+1)*STRIDE>data.length) {
+            int[] a = new int[data.length*2];
+            System.arraycopy(data,0,a,0,size*STRIDE);
+            data = a;
+        }
+        int o = size*STRIDE;
+        data[o+KIND] = kind;
+        data[o+START] = start;
+        data[o+END] = end;
+        data[o+NAME] = nameId;
+        data[o+MATCH] = -1;
+
+        // link up start and end tags
+        if (kind==XMLStreamConstants.END_ELEMENT) {
+            if (sp==0) {
+                broken = true;
+            } else {
+                int s = stack[--sp];
+                data[s*STRIDE+MATCH] = size;
+                data[o+MATCH] = s;
+            }
+        }
+        data[o+PARENT] = sp==0 ? -1 : stack[sp-1];
+        if (kind==XMLStreamConstants.START_ELEMENT) {
+            if (sp==stack.length) {
+                int[] a = new int[sp*2];
+                System.arraycopy(stack,0,a,0,sp);
+                stack = a;
+            }
+            stack[sp++] = size;
+        }
+        size++;
+    }
+
+    /**
+     * Called after all the events are added.
+     *
+     * @return
+     *      false if the start and end tags don't match up.
+     */
+    boolean finish(int length) {
+        this.length = length;
+        boolean ok = !broken && sp==0;
+        stack = null;
+        return ok;
+    }
+
+    /**
+     * Computes [start,end) of events exactly like {@link XmlPatcher#hasNext()} does, and adds them to this index.
+     *
+     * @param text
+     *      The text that the reader is reading.
+     */
+    void tokenize(XMLStreamReader r, CharSequence text, NameTable names) throws XMLStreamException {
+        int len = text.length();
+        int prev = 0;
+        int kind = r.getEventType();
+        int name = -1;
+        while (true) {
+            int s = prev;
+            int e = s;
+            boolean more = r.hasNext();
+            if (more) {
+                r.next();
+                e = offset(r);
+            }
+            if (e!=-1) {
+                if (!isCharacters(kind)) {
+                    while (s<e && s<len && (text.charAt(s)=='\n' || text.charAt(s)=='\r'))
+                        s++;
+                } else {
+                    while ((e-s>1 && (text.charAt(e-1)=='<' || text.charAt(e-1)=='&')) || (e-s>2 && text.charAt(e-2)=='<'))
+                        e--;
+                }
+            }
+            if (s>=len)
+                return;
+            add(kind, s, e, name);
+            if (!more)
+                return;
+            prev = e;
+
+            kind = r.getEventType();
+            name = -1;
+            if (kind==XMLStreamConstants.START_ELEMENT || kind==XMLStreamConstants.END_ELEMENT)
+                name = names.intern(r.getName());
+        }
+    }
+
+    /**
+     * Builds the index of the document after the edits in the log are made.
+     *
+     * @param log
+     *      Edits made since this index was built, in the coordinates of this index.
+     * @param xml
+     *      The document with the edits.
+     * @return
+     *      null if the index can't be brought up to date, for example because the edits change the root element
+     *      or the edited elements are no longer well-formed, in which case the document needs to be parsed again.
+     */
+    EventIndex rebuild(EditLog log, DocumentBuffer xml, NameTable names, XMLInputFactory factory) {
+        int[] spans = spans(log);
+        if (spans==null)
+            return null;
+
+        EventIndex r = new EventIndex(size+16);
+        int i = 0;      // next event to copy from this index
+        int j = 0;      // next log entry
+        int d = 0;      // sum of the deltas of the entries before i
+        try {
+            for (int c : spans) {
+                // copy events up to the start tag of the element whose content changed
+                for (; i<=c; i++) {
+                    while (j<log.size() && log.end(j)<=start(i))
+                        d += log.delta(j++);
+                    r.copy(this, i, d);
+                }
+
+                // then parse the new content
+                int m = match(c);
+                int dm = d;
+                while (j<log.size() && log.end(j)<=start(m))
+                    dm += log.delta(j++);
+                if (!r.reparse(this, m, dm, xml, names, factory))
+                    return null;
+                i = m+1;
+                d = dm;
+            }
+            for (; i<size; i++) {
+                while (j<log.size() && log.end(j)<=start(i))
+                    d += log.delta(j++);
+                r.copy(this, i, d);
+            }
+        } catch (XMLStreamException e) {
+            return null;    // not well-formed
+        }
+
+        return r.finish(xml.length()) ? r : null;
+    }
+
+    /**
+     * Finds the start tags of the elements whose contents need to be parsed again.
+     * Each element is the innermost one that encloses one or more edits without its tags being touched.
+     *
+     * @return
+     *      Start tag indices in the document order, or null if some edits are not inside the root element.
+     */
+    private int[] spans(EditLog log) {
+        int[] r = new int[log.size()];
+        int n = 0;
+        for (int j=0; j<log.size(); j++) {
+            int s = log.start(j), e = log.end(j);
+
+            // the last event that ends before the edit
+            int lo = -1, hi = size;
+            while (hi-lo>1) {
+                int mid = (lo+hi)>>>1;
+                if (end(mid)<=s)    lo = mid;
+                else                hi = mid;
+            }
+            if (lo<0)
+                return null;
+
+            int c = kind(lo)==XMLStreamConstants.START_ELEMENT ? lo : parent(lo);
+            if (c>=0 && start(c)==end(c))
+                c = parent(c);  // an empty element like <a/>, which has no content to speak of
+            while (c>=0 && start(match(c))<e)
+                c = parent(c);
+            if (c<0)
+                return null;
+
+            // spans are either nested or disjoint
+            if (n>0 && r[n-1]<=c && match(c)<=match(r[n-1]))
+                continue;   // inside the previous one
+            while (n>0 && c<=r[n-1] && match(r[n-1])<=match(c))
+                n--;        // the previous one is inside this one
+            r[n++] = c;
+        }
+        int[] a = new int[n];
+        System.arraycopy(r,0,a,0,n);
+        return a;
+    }
+
+    private void copy(EventIndex src, int i, int delta) {
+        add(src.kind(i), src.start(i)+delta, src.end(i)+delta, src.nameId(i));
+    }
+
+    /**
+     * Parses the new content of an element, and adds the events in it to this index, followed by the end tag.
+     *
+     * The start tag of the element is already copied as the last event of this index.
+     *
+     * @param m
+     *      End tag of the element in the old index.
+     * @param dm
+     *      Shift of the end tag.
+     */
+    private boolean reparse(EventIndex old, int m, int dm, DocumentBuffer xml, NameTable names, XMLInputFactory factory) throws XMLStreamException {
+        // to parse the content with the right namespace bindings, the element is put inside its ancestors' start tags
+        StringBuilder w = new StringBuilder();
+        int depth = 0;
+        for (int p=parent(size-1); p>=0; p=parent(p)) {
+            String tag = tagAt(xml, start(p));
+            w.insert(0, tag);
+            depth++;
+        }
+        int base = w.length();
+        int from = indexOf(xml, start(size-1));
+        int to = tagEnd(xml, indexOf(xml, old.start(m)+dm));
+        if (from<0 || to<0)
+            return false;
+        w.append(xml.substring(from, to));
+        for (int p=parent(size-1); p>=0; p=parent(p)) {
+            String tag = tagAt(xml, start(p));
+            w.append("</").append(tag, 1, nameEnd(tag)).append('>');
+        }
+
+        EventIndex x = new EventIndex();
+        XMLStreamReader r = factory.createXMLStreamReader(new StringReader(w.toString()));
+        try {
+            x.tokenize(r, w, names);
+        } finally {
+            r.close();
+        }
+        if (!x.finish(w.length()))
+            return false;
+
+        // find our element among the ancestors
+        int k = 0;
+        for (int seen=0; k<x.size(); k++) {
+            if (x.kind(k)==XMLStreamConstants.START_ELEMENT && seen++==depth)
+                break;
+        }
+        int km = x.match(k);
+        if (k==x.size() || km<0)
+            return false;
+
+        int shift = from-base;
+        // the start tag is already copied. only its end is affected by what follows
+        data[(size-1)*STRIDE+END] = x.end(k)+shift;
+        for (int i=k+1; i<km; i++)
+            add(x.kind(i), x.start(i)+shift, x.end(i)+shift, x.nameId(i));
+        add(old.kind(m), x.start(km)+shift, old.end(m)+dm, old.nameId(m));
+        return true;
+    }
+
+    /**
+     * Gets the text of the tag that starts at or after the given position.
+     */
+    private static String tagAt(DocumentBuffer xml, int pos) {
+        int s = indexOf(xml, pos);
+        return xml.substring(s, tagEnd(xml, s));
+    }
+
+    private static int indexOf(DocumentBuffer xml, int pos) {
+        for (int i=pos; i<xml.length(); i++)
+            if (xml.charAt(i)=='<')
+                return i;
+        return -1;
+    }
+
+    /**
+     * Finds the position right after the '>' that closes the tag that starts at the given position.
+     */
+    static int tagEnd(DocumentBuffer xml, int pos) {
+        char quote = 0;
+        for (int i=pos; i<xml.length(); i++) {
+            char ch = xml.charAt(i);
+            if (quote!=0) {
+                if (ch==quote)  quote = 0;
+            } else if (ch=='"' || ch=='\'') {
+                quote = ch;
+            } else if (ch=='>') {
+                return i+1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the end tag of the element whose contents start where the reader is, by balancing tags
+     * without parsing them. Comments, CDATA sections, processing instructions, and quoted attribute values
+     * are recognized, so that a '&lt;' in them doesn't throw off the count.
+     *
+     * @param pos
+     *      Position of the reader in the document.
+     * @return
+     *      Position of the end tag, or -1 if it's not found.
+     */
+    static int findEndTag(Reader in, int pos) throws IOException {
+        final int TEXT=0, LT=1, START_TAG=2, END_TAG=3, BANG=4, COMMENT=5, CDATA=6, PI=7, DECL=8;
+        int state = TEXT;
+        int depth = 0;
+        char quote = 0;
+        char p1 = 0, p2 = 0;    // the last two characters
+        char[] buf = new char[8192];
+        int len;
+        while ((len=in.read(buf))>=0) {
+            for (int i=0; i<len; i++, pos++) {
+                char ch = buf[i];
+                switch (state) {
+                case TEXT:
+                    if (ch=='<')
+                        state = LT;
+                    break;
+                case LT:
+                    if (ch=='/') {
+                        if (depth==0)
+                            return pos-1;
+                        state = END_TAG;
+                    } else if (ch=='!') {
+                        state = BANG;
+                    } else if (ch=='?') {
+                        state = PI;
+                    } else {
+                        state = START_TAG;
+                    }
+                    break;
+                case START_TAG:
+                    if (quote!=0) {
+                        if (ch==quote)  quote = 0;
+                    } else if (ch=='"' || ch=='\'') {
+                        quote = ch;
+                    } else if (ch=='>') {
+                        if (p1!='/')
+                            depth++;
+                        state = TEXT;
+                    }
+                    break;
+                case END_TAG:
+                    if (ch=='>') {
+                        depth--;
+                        state = TEXT;
+                    }
+                    break;
+                case BANG:
+                    state = ch=='-' ? COMMENT : ch=='[' ? CDATA : DECL;
+                    break;
+                case COMMENT:
+                    if (ch=='>' && p1=='-' && p2=='-')
+                        state = TEXT;
+                    break;
+                case CDATA:
+                    if (ch=='>' && p1==']' && p2==']')
+                        state = TEXT;
+                    break;
+                case PI:
+                    if (ch=='>' && p1=='?')
+                        state = TEXT;
+                    break;
+                case DECL:
+                    if (ch=='>')
+                        state = TEXT;
+                    break;
+                }
+                p2 = p1;
+                p1 = ch;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the end of the element name in the text of a start tag.
+     */
+    private static int nameEnd(String tag) {
+        int i = 1;
+        while (i<tag.length() && !Character.isWhitespace(tag.charAt(i)) && tag.charAt(i)!='>' && tag.charAt(i)!='/')
+            i++;
+        return i;
+    }
+
+    /**
+     * Finds the attribute of the given name in the text of a start tag.
+     *
+     * @return
+     *      Start and end of the name, followed by those of the value without the quotes, or null if the tag
+     *      doesn't have the attribute.
+     */
+    static int[] findAttribute(String tag, String qname) {
+        int len = tag.length();
+        int i = nameEnd(tag);
+        while (true) {
+            while (i<len && Character.isWhitespace(tag.charAt(i)))
+                i++;
+            if (i>=len || tag.charAt(i)=='>' || tag.charAt(i)=='/')
+                return null;
+
+            int ns = i;
+            while (i<len && tag.charAt(i)!='=' && !Character.isWhitespace(tag.charAt(i)))
+                i++;
+            int ne = i;
+            while (i<len && tag.charAt(i)!='"' && tag.charAt(i)!='\'')
+                i++;    // over '=' and spaces around it
+            if (i>=len)
+                return null;
+            char quote = tag.charAt(i++);
+            int vs = i;
+            while (i<len && tag.charAt(i)!=quote)
+                i++;
+            if (i>=len)
+                return null;
+            int ve = i++;
+
+            if (ne-ns==qname.length() && tag.startsWith(qname, ns))
+                return new int[]{ns,ne,vs,ve};
+        }
+    }
+}
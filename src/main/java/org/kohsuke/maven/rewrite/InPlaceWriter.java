@@ -0,0 +1,164 @@
+package org.kohsuke.maven.rewrite;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes changes back into the file the document was read from, by only rewriting the bytes that changed.
+ *
+ * <p>
+ * When every change keeps the byte length of the text it replaces, only those bytes are written.
+ * Otherwise the file is rewritten from the first change onward, and truncated.
+ * A failure halfway leaves a broken file behind, so {@link XmlPatcher#save()} only comes here when
+ * the part to rewrite is small.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class InPlaceWriter {
+    private final File file;
+    /**
+     * Byte offsets to write at, and the bytes to write there.
+     */
+    private final long[] offsets;
+    private final ByteBuffer[] data;
+    /**
+     * If the file is truncated after the last write.
+     */
+    private final boolean truncate;
+
+    private InPlaceWriter(File file, long[] offsets, ByteBuffer[] data, boolean truncate) {
+        this.file = file;
+        this.offsets = offsets;
+        this.data = data;
+        this.truncate = truncate;
+    }
+
+    /**
+     * Works out what to write.
+     *
+     * @param original
+     *      The document as it was read from the file.
+     * @param changes
+     *      Changes from the original to the current document, in the coordinates of the original.
+     * @return
+     *      null if the file can't be written in place, and the whole file needs to be written instead.
+     */
+    static InPlaceWriter plan(File file, String encoding, DocumentBuffer original, DocumentBuffer current, EditLog changes) throws IOException {
+        boolean utf8 = encoding.equalsIgnoreCase("UTF-8");
+        if (!utf8 && !encoding.equalsIgnoreCase("US-ASCII") && !encoding.equalsIgnoreCase("ISO-8859-1"))
+            return null;    // we can't tell byte offsets from character offsets cheaply
+        Charset cs = Charset.forName(encoding);
+
+        long size = file.length();
+        int bom = utf8 && MappedText.hasBom(file) ? 3 : 0;
+
+        int n = changes.size();
+        long[] offsets = new long[n];
+        ByteBuffer[] data = new ByteBuffer[n];
+        boolean sameLength = true;
+        long pos = bom;
+        int d = 0;
+        ByteCounter bytes = new ByteCounter(original, utf8);
+        try {
+            for (int i=0; i<n && sameLength; i++) {
+                int s = changes.start(i);
+                pos += bytes.countTo(s);
+                offsets[i] = pos;
+                data[i] = cs.encode(CharBuffer.wrap(current.substring(s+d, s+d+changes.length(i))));
+                long len = bytes.countTo(changes.end(i));
+                sameLength = data[i].remaining()==len;
+                pos += len;
+                d += changes.delta(i);
+            }
+            if (pos+bytes.countTo(original.length())!=size)
+                return null;    // the file doesn't hold the text we think it does
+        } finally {
+            bytes.close();
+        }
+        if (sameLength)
+            return new InPlaceWriter(file, offsets, data, false);
+
+        // rewrite everything from the first change
+        int s = changes.start(0);
+        ByteBuffer tail = cs.encode(CharBuffer.wrap(current.substring(s, current.length())));
+        if (tail.remaining()>size/2)
+            return null;    // not worth the risk of breaking the file
+        return new InPlaceWriter(file, new long[]{offsets[0]}, new ByteBuffer[]{tail}, true);
+    }
+
+    void write() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            long end = 0;
+            for (int i=0; i<offsets.length; i++) {
+                long pos = offsets[i];
+                ByteBuffer buf = data[i];
+                while (buf.hasRemaining())
+                    pos += ch.write(buf, pos);
+                end = pos;
+            }
+            if (truncate)
+                ch.truncate(end);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Counts the bytes that the text takes up, reading it front to back once.
+     */
+    private static final class ByteCounter {
+        private final Reader in;
+        private final boolean utf8;
+        private final char[] buf = new char[8192];
+        /**
+         * Character offset up to which the text is counted.
+         */
+        private int pos;
+
+        ByteCounter(DocumentBuffer text, boolean utf8) {
+            this.in = utf8 ? text.openReader() : null;
+            this.utf8 = utf8;
+        }
+
+        /**
+         * Number of bytes from where the last call left off to the given character offset.
+         */
+        long countTo(int end) throws IOException {
+            if (!utf8) {
+                long n = end-pos;
+                pos = end;
+                return n;
+            }
+            long n = 0;
+            while (pos<end) {
+                int len = in.read(buf, 0, Math.min(buf.length, end-pos));
+                if (len<0)
+                    throw new EOFException("The text ends at "+pos);
+                for (int i=0; i<len; i++) {
+                    char c = buf[i];
+                    if (c<0x80)         n+=1;
+                    else if (c<0x800)   n+=2;
+                    else if (c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE)
+                                        n+=2;   // a pair takes up 4 bytes
+                    else                n+=3;
+                }
+                pos += len;
+            }
+            return n;
+        }
+
+        void close() throws IOException {
+            if (in!=null)
+                in.close();
+        }
+    }
+}
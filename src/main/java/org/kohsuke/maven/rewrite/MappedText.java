@@ -0,0 +1,195 @@
+package org.kohsuke.maven.rewrite;
+
+import org.codehaus.plexus.util.xml.XmlStreamReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory-mapped file viewed as a {@link CharSequence}, one byte per character.
+ *
+ * <p>
+ * This is only a faithful view when every byte in the range maps to the character of the same value,
+ * which is the case for ASCII and ISO-8859-1 files, as well as for the ASCII runs of UTF-8 files.
+ * See {@link #open(File)}.
+ *
+ * <p>
+ * The file must not be modified while the mapping is in use.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class MappedText implements CharSequence {
+    private final ByteBuffer buf;
+    private final int off, len;
+
+    private MappedText(ByteBuffer buf, int off, int len) {
+        this.buf = buf;
+        this.off = off;
+        this.len = len;
+    }
+
+    public int length() {
+        return len;
+    }
+
+    public char charAt(int index) {
+        if (index<0 || index>=len)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        return (char)(buf.get(off+index)&0xFF);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (start<0 || end>len || start>end)
+            throw new IndexOutOfBoundsException(start+","+end);
+        return new MappedText(buf,off+start,end-start);
+    }
+
+    /**
+     * Bulk version of {@link #charAt(int)}, like {@link String#getChars(int, int, char[], int)}.
+     */
+    void getChars(int start, int end, char[] dst, int dstOff) {
+        for (int i=start; i<end; i++)
+            dst[dstOff++] = (char)(buf.get(off+i)&0xFF);
+    }
+
+    @Override
+    public String toString() {
+        char[] r = new char[len];
+        getChars(0,len,r,0);
+        return new String(r);
+    }
+
+    /**
+     * Copies the bytes of [start,end) to the stream.
+     */
+    void copyTo(OutputStream out, int start, int end) throws IOException {
+        ByteBuffer b = buf.duplicate();
+        b.position(off+start);
+        byte[] chunk = new byte[Math.min(8192, end-start)];
+        for (int n=end-start; n>0; ) {
+            int k = Math.min(n, chunk.length);
+            b.get(chunk, 0, k);
+            out.write(chunk, 0, k);
+            n -= k;
+        }
+    }
+
+    /**
+     * Maps the given file, and views it as a document whose text refers to the mapping as much as possible.
+     *
+     * <p>
+     * Files in ASCII and ISO-8859-1 are viewed in full. In UTF-8 files, runs of ASCII characters are viewed as-is,
+     * and the rest is decoded into the heap.
+     *
+     * @return
+     *      null if the file can't be mapped, or if it's mostly non-ASCII characters,
+     *      in which case the caller needs to decode the file.
+     */
+    static PieceTableBuffer open(File f) throws IOException {
+        String enc = detectEncoding(f);
+        boolean latin1 = enc.equalsIgnoreCase("ISO-8859-1");
+        boolean utf8 = enc.equalsIgnoreCase("UTF-8");
+        if (!latin1 && !utf8 && !enc.equalsIgnoreCase("US-ASCII"))
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(f,"r");
+        try {
+            FileChannel ch = raf.getChannel();
+            long size = ch.size();
+            if (size>Integer.MAX_VALUE)
+                return null;
+            // the mapping stays valid after the channel is closed
+            ByteBuffer buf = ch.map(MapMode.READ_ONLY, 0, size);
+            if (latin1)
+                return new PieceTableBuffer(new MappedText(buf,0,(int)size));
+
+            List<CharSequence> pieces = new ArrayList<CharSequence>();
+            int len = (int)size;
+            int run = hasBom(buf) ? 3 : 0;  // start of the current ASCII run
+            int decoded = 0;
+            for (int i=run; i<len; i++) {
+                if (buf.get(i)>=0)
+                    continue;
+                if (!utf8)
+                    return null;    // not really ASCII
+
+                // decode until the next long enough ASCII run, so that we don't end up with a piece per character
+                int e = i+1;
+                for (int j=e; j<len && j-e<MIN_RUN; j++)
+                    if (buf.get(j)<0)
+                        e = j+1;
+                String s = decode(buf, i, e);
+                if (s==null)
+                    return null;    // malformed. let the decoder deal with it
+
+                if (run<i)
+                    pieces.add(new MappedText(buf,run,i-run));
+                pieces.add(s);
+                decoded += e-i;
+                run = e;
+                i = e-1;
+            }
+            if (decoded*2>len)
+                return null;    // no savings
+            if (run<len)
+                pieces.add(new MappedText(buf,run,len-run));
+            return new PieceTableBuffer(pieces);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * ASCII runs shorter than this between non-ASCII characters are decoded along with them.
+     */
+    private static final int MIN_RUN = 64;
+
+    private static String decode(ByteBuffer buf, int start, int end) {
+        ByteBuffer b = buf.duplicate();
+        b.position(start);
+        b.limit(end);
+        try {
+            return UTF8.newDecoder().decode(b).toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static boolean hasBom(ByteBuffer buf) {
+        return buf.limit()>=3 && buf.get(0)==(byte)0xEF && buf.get(1)==(byte)0xBB && buf.get(2)==(byte)0xBF;
+    }
+
+    /**
+     * Checks if the file starts with the UTF-8 byte order mark.
+     */
+    /*package*/ static boolean hasBom(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return in.read()==0xEF && in.read()==0xBB && in.read()==0xBF;
+        } finally {
+            in.close();
+        }
+    }
+
+    /*package*/ static String detectEncoding(File f) throws IOException {
+        XmlStreamReader r = new XmlStreamReader(f);
+        try {
+            return r.getEncoding();
+        } finally {
+            r.close();
+        }
+    }
+}
@@ -9,14 +9,48 @@ public class Mark {
     /**
      * Character position of the start and the end of the mark.
      *
-     * The region is [start,end)
+     * The region is [start,end). For a tracked mark, these can be out of date until {@link #settle()} is called.
      */
     /*package*/ int s, e;
     private final XmlPatcher patcher;
 
+    /**
+     * Whether {@link XmlPatcher} should update the position of this mark as the document changes.
+     */
+    private final boolean tracked;
+
+    /**
+     * Node in {@link XmlPatcher#marks}, if this mark is currently tracked.
+     */
+    /*package*/ MarkIndex.Node node;
+
+    /**
+     * {@link MarkIndex} version this mark was last settled at.
+     */
+    /*package*/ int version;
+
     Mark(XmlPatcher patcher) {
+        this(patcher,true);
+    }
+
+    Mark(XmlPatcher patcher, boolean tracked) {
         this.patcher = patcher;
-        patcher.marks.add(this);
+        this.tracked = tracked;
+        if (tracked)
+            patcher.marks.add(this);
+    }
+
+    Mark(XmlPatcher patcher, int start, int end) {
+        this(patcher, start, end, true);
+    }
+
+    Mark(XmlPatcher patcher, int start, int end, boolean tracked) {
+        this.patcher = patcher;
+        this.tracked = tracked;
+        this.s = start;
+        this.e = end;
+        if (tracked)
+            patcher.marks.add(this);
     }
 
     /**
@@ -24,10 +58,11 @@ public class Mark {
      *
      * Until closed, a mark is tracked by {@link XmlPatcher}, so it'll leak memory unless it's cleared at the end.
      * A mark can also get automatically closed if an update to another mark renders this mark obsolete.
+     * Setting a cleared mark to a new position makes it tracked again.
      */
     public void clear() {
-        s = e =-1;
         patcher.marks.remove(this);
+        s = e =-1;
     }
 
     /**
@@ -41,6 +76,7 @@ public class Mark {
      * Gets the XML text that this mark is pointing at.
      */
     public String verbatim() {
+        settle();
         return isSet() ? patcher.xml.substring(s, e) : "";
     }
 
@@ -50,9 +86,9 @@ public class Mark {
     public void replace(String replacement) {
         if (!isSet())
             throw new IllegalStateException();
-        patcher.xml.replace(s, e, replacement);
-        int d = replacement.length() - length();
-        patcher.updateMarks(this,d);
+        if (replacement.length()==length() && replacement.equals(verbatim()))
+            return; // no change
+        patcher.replace(this, replacement);
     }
 
     /**
@@ -63,12 +99,33 @@ public class Mark {
     }
 
     void set(int start, int end) {
+        if (node!=null)
+            patcher.marks.remove(this);
         this.s = start;
         this.e = end;
+        if (tracked)
+            patcher.marks.add(this);
+    }
+
+    /**
+     * Brings {@link #s} and {@link #e} up to date.
+     */
+    private void settle() {
+        patcher.marks.settle(this);
+    }
+
+    /*package*/ int start() {
+        settle();
+        return s;
+    }
+
+    /*package*/ int end() {
+        settle();
+        return e;
     }
 
     public boolean isLeftOf(Mark that) {
-        return e <= that.s;
+        return end() <= that.start();
     }
 
     public boolean isRightOf(Mark that) {
@@ -76,28 +133,30 @@ public class Mark {
     }
 
     int length() {
+        settle();
         return e - s;
     }
 
     public void set(Mark that) {
-        this.s = that.s;
-        this.e = that.e;
+        set(that.start(), that.end());
     }
 
     /**
-     * If another mark changes its length by delta, update the position of this mark
-     * so that it points to the same thing
+     * If the range [start,end) changes its length by delta, update the position of this mark
+     * so that it points to the same thing.
+     *
+     * This is only used for untracked marks. {@link MarkIndex} applies the same rules to tracked marks.
      */
-    void update(Mark that, int delta) {
+    void update(int start, int end, int delta) {
         if (!isSet() || delta==0)
             return; // nothing to update
-        if (this.isLeftOf(that))
+        if (e <= start)
             return; // change to the right. this mark is unaffected
-        if (that.isLeftOf(this)) {
+        if (end <= s) {
             shift(delta);
             return; // change to the left. move our position accordingly
         }
-        if (this.contains(that)) {
+        if (s <= start && end <= e) {
             grow(delta);
             return; // inside this mark, just update the range
         }
@@ -125,13 +184,13 @@ public class Mark {
 
         Mark mark = (Mark) o;
 
-        return e == mark.e && s == mark.s;
+        return end() == mark.end() && start() == mark.start();
     }
 
     @Override
     public int hashCode() {
-        int result = s;
-        result = 31 * result + e;
+        int result = start();
+        result = 31 * result + end();
         return result;
     }
 
@@ -139,7 +198,7 @@ public class Mark {
      * Does this mark contains the other mark?
      */
     public boolean contains(Mark that) {
-        return this.s <=that.s && that.e <=this.e;
+        return this.start() <=that.start() && that.end() <=this.end();
     }
 
     /**
@@ -156,6 +215,16 @@ public class Mark {
         return between(this,patcher.getLast());
     }
 
+    /**
+     * Like {@link #toCurrent()}, except that the patcher doesn't keep track of the returned mark.
+     * Its position stays valid only until the document is edited other than through the mark itself,
+     * so this is for ranges that are read or replaced right away. It's cheaper to create, and it doesn't
+     * have to be cleared.
+     */
+    public Mark rangeToCurrent() {
+        return between(this,patcher.getLast(),false);
+    }
+
     @Override
     public String toString() {
         return verbatim();
@@ -165,10 +234,12 @@ public class Mark {
      * Computes a mark that covers the range between two marks.
      */
     static Mark between(Mark a, Mark b) {
+        return between(a, b, true);
+    }
+
+    private static Mark between(Mark a, Mark b, boolean tracked) {
         if (a.isSet() && b.isSet() && a.isLeftOf(b)) {
-            Mark m = new Mark(a.patcher);
-            m.set(a.e,b.s);
-            return m;
+            return new Mark(a.patcher, a.end(), b.start(), tracked);
         }
 
         throw new IllegalStateException();
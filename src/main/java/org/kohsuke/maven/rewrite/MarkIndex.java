@@ -0,0 +1,314 @@
+package org.kohsuke.maven.rewrite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Live {@link Mark}s of {@link XmlPatcher}, ordered by their start offsets.
+ *
+ * <p>
+ * Marks are kept in a treap, where each node remembers the largest end offset in its subtree.
+ * When the document changes, marks to the right of the change are moved in bulk by leaving a pending shift
+ * on the subtree that holds them, and only the marks that overlap with the change are visited individually.
+ * Pending shifts are pushed down lazily, either by tree operations or when the mark is accessed
+ * (see {@link #settle(Mark)}.)
+ *
+ * <p>
+ * Marks point to their nodes, so removing a mark doesn't depend on its position, nor on
+ * {@link Mark#equals(Object)}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class MarkIndex {
+    static final class Node {
+        final Mark mark;
+        final int priority;
+        Node left, right, parent;
+        /**
+         * Shift that is yet to be applied to the children of this node.
+         * The mark of this node itself is already shifted.
+         */
+        int shift;
+        /**
+         * Largest end offset of the marks in this subtree.
+         */
+        int maxEnd;
+
+        Node(Mark mark, int priority) {
+            this.mark = mark;
+            this.priority = priority;
+            this.maxEnd = mark.e;
+        }
+    }
+
+    private Node root;
+    private int size;
+    /**
+     * Largest {@link #size} since the last {@link #clear()}.
+     */
+    private int peak;
+
+    /**
+     * Incremented every time a shift is left pending, so that marks can tell if they need to be settled.
+     */
+    private int version;
+
+    private int seed = 0x2545F491;
+
+    int size() {
+        return size;
+    }
+
+    int peak() {
+        return peak;
+    }
+
+    void add(Mark m) {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+
+        Node n = new Node(m, seed);
+        m.node = n;
+        m.version = version;
+
+        // add to the end of the marks that start at the same position
+        Node[] x = split(root, m.s+1);
+        root = merge(merge(x[0], n), x[1]);
+        root.parent = null;
+        if (++size>peak)
+            peak = size;
+    }
+
+    void remove(Mark m) {
+        Node n = m.node;
+        if (n==null)
+            return;
+        pushPath(n);
+
+        Node c = merge(n.left, n.right);
+        Node p = n.parent;
+        if (c!=null)
+            c.parent = p;
+        if (p==null) {
+            root = c;
+        } else {
+            if (p.left==n)
+                p.left = c;
+            else
+                p.right = c;
+            for (; p!=null; p=p.parent)
+                pull(p);
+        }
+        m.node = null;
+        size--;
+    }
+
+    /**
+     * Removes all the marks.
+     */
+    void clear() {
+        unlink(root);
+        root = null;
+        size = peak = 0;
+    }
+
+    private void unlink(Node n) {
+        for (; n!=null; n=n.right) {
+            unlink(n.left);
+            n.mark.node = null;
+        }
+    }
+
+    /**
+     * Applies pending shifts to the given mark, so that its offsets are up to date.
+     */
+    void settle(Mark m) {
+        if (m.node==null || m.version==version)
+            return;
+        pushPath(m.node);
+        m.version = version;
+    }
+
+    /**
+     * Smallest start offset among the marks, or -1 if there's no mark.
+     */
+    int firstStart() {
+        Node n = root;
+        if (n==null)
+            return -1;
+        while (true) {
+            push(n);
+            if (n.left==null)
+                return n.mark.s;
+            n = n.left;
+        }
+    }
+
+    /**
+     * Updates marks when the range [s,e) of the document is replaced by a text that's 'delta' characters longer,
+     * with the same rules as {@link Mark#update(int, int, int)}.
+     *
+     * @return
+     *      Number of marks that are updated individually, as opposed to the ones that are shifted in bulk.
+     */
+    int update(int s, int e, int delta) {
+        if (root==null || delta==0)
+            return 0;
+
+        Node[] x = split(root, e);
+        Node left = x[0], right = x[1];
+        int updated = 0;
+
+        if (s<e) {
+            // everything that starts at or after the end of the change moves
+            shift(right, delta);
+        } else {
+            // insertion. empty marks at the insertion point stay, everything else that starts there moves
+            Node[] y = split(right, e+1);
+            List<Node> same = new ArrayList<Node>();
+            collect(y[0], same);
+            updated += same.size();
+            Node stay = null, move = null;
+            for (Node n : same) {
+                n.left = n.right = n.parent = null;
+                n.shift = 0;
+                if (n.mark.e==s) {
+                    stay = merge(stay, n);
+                } else {
+                    n.mark.shift(delta);
+                    n.maxEnd = n.mark.e;
+                    move = merge(move, n);
+                }
+            }
+            shift(y[1], delta);
+            right = merge(merge(stay, move), y[1]);
+        }
+
+        // marks that start before the change and end after it either grow or get cleared
+        List<Mark> broken = new ArrayList<Mark>();
+        updated += fix(left, s, e, delta, broken);
+
+        root = merge(left, right);
+        if (root!=null)
+            root.parent = null;
+
+        for (Mark m : broken)
+            m.clear();
+        return updated;
+    }
+
+    private int fix(Node n, int s, int e, int delta, List<Mark> broken) {
+        if (n==null || n.maxEnd<=s)
+            return 0;
+        push(n);
+        int r = fix(n.left, s, e, delta, broken) + fix(n.right, s, e, delta, broken);
+        Mark m = n.mark;
+        if (m.e>s) {
+            if (m.s<=s && e<=m.e)
+                m.grow(delta);
+            else
+                broken.add(m);
+            r++;
+        }
+        pull(n);
+        return r;
+    }
+
+    private void collect(Node n, List<Node> r) {
+        if (n==null)
+            return;
+        push(n);
+        collect(n.left, r);
+        r.add(n);
+        collect(n.right, r);
+    }
+
+    private void shift(Node n, int delta) {
+        if (n==null)
+            return;
+        apply(n, delta);
+        version++;
+    }
+
+    private static void apply(Node n, int delta) {
+        if (n==null)
+            return;
+        n.mark.shift(delta);
+        n.maxEnd += delta;
+        n.shift += delta;
+    }
+
+    private static void push(Node n) {
+        if (n.shift!=0) {
+            apply(n.left, n.shift);
+            apply(n.right, n.shift);
+            n.shift = 0;
+        }
+    }
+
+    /**
+     * Pushes down all the pending shifts from the root to the given node.
+     */
+    private static void pushPath(Node n) {
+        if (n.parent!=null)
+            pushPath(n.parent);
+        push(n);
+    }
+
+    private static void pull(Node n) {
+        int m = n.mark.e;
+        if (n.left!=null)
+            m = Math.max(m, n.left.maxEnd);
+        if (n.right!=null)
+            m = Math.max(m, n.right.maxEnd);
+        n.maxEnd = m;
+    }
+
+    /**
+     * Splits the tree into the marks that start before the given offset and the rest.
+     */
+    private static Node[] split(Node n, int start) {
+        if (n==null)
+            return new Node[2];
+        push(n);
+        Node[] x;
+        if (n.mark.s<start) {
+            x = split(n.right, start);
+            n.right = x[0];
+            if (x[0]!=null)
+                x[0].parent = n;
+            x[0] = n;
+        } else {
+            x = split(n.left, start);
+            n.left = x[1];
+            if (x[1]!=null)
+                x[1].parent = n;
+            x[1] = n;
+        }
+        pull(n);
+        n.parent = null;
+        return x;
+    }
+
+    /**
+     * Concatenates two trees, where all the marks in the first tree start no later than those in the second.
+     */
+    private static Node merge(Node a, Node b) {
+        if (a==null)    return b;
+        if (b==null)    return a;
+        if (a.priority>b.priority) {
+            push(a);
+            a.right = merge(a.right, b);
+            a.right.parent = a;
+            pull(a);
+            return a;
+        } else {
+            push(b);
+            b.left = merge(a, b.left);
+            b.left.parent = b;
+            pull(b);
+            return b;
+        }
+    }
+}
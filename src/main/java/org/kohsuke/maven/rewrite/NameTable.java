@@ -0,0 +1,37 @@
+package org.kohsuke.maven.rewrite;
+
+import javax.xml.namespace.QName;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns element names, so that each distinct name is represented by one {@link QName} instance and a small id.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class NameTable {
+    private final Map<QName,Integer> ids = new HashMap<QName,Integer>();
+    private final List<QName> names = new ArrayList<QName>();
+
+    int intern(QName name) {
+        Integer id = ids.get(name);
+        if (id==null) {
+            id = names.size();
+            // drop the prefix, which isn't a part of the identity of the name
+            QName n = new QName(name.getNamespaceURI(), name.getLocalPart());
+            ids.put(n, id);
+            names.add(n);
+        }
+        return id;
+    }
+
+    QName get(int id) {
+        return names.get(id);
+    }
+
+    int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,304 @@
+package org.kohsuke.maven.rewrite;
+
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.maven.rewrite.edit.InsertInElement;
+import org.kohsuke.maven.rewrite.edit.RemoveElement;
+import org.kohsuke.maven.rewrite.edit.ReplaceElementText;
+import org.kohsuke.maven.rewrite.edit.SetAttribute;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Patch written as text, which is compiled once and applied to any number of documents.
+ *
+ * <p>
+ * A script is a list of rules, one per line. Each rule is a path pattern as in {@link PathMatchers#compile(String...)},
+ * followed by an operation on the elements that the pattern matches:
+ *
+ * <pre>
+ * # comments and empty lines are ignored
+ * /project/version                       set-text       2.0
+ * /project/dependencies                  insert-child   &lt;dependency>&lt;artifactId>x&lt;/artifactId>&lt;/dependency>
+ * //dependency/optional                  remove
+ * /project/build/plugins/plugin          set-attribute  combine.children  append
+ * </pre>
+ *
+ * <p>
+ * The last argument of an operation is the rest of the line. It can also be written in double quotes,
+ * with backslash escapes for '"', '\', newline (\n) and tab (\t), to keep spaces at its ends.
+ * Texts and attribute values are escaped when they are inserted, while the argument of {@code insert-child}
+ * is inserted as XML.
+ *
+ * <p>
+ * All the rules run in a single scan, in the order they are written, as {@link CompositeVisitor} would run them.
+ * A script is immutable, so it can be used by any number of threads at once.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class PatchScript {
+    private final List<Rule> rules;
+
+    /**
+     * Matchers of the rules, which share one state machine for all the patterns,
+     * so that the cost of matching an element doesn't grow with the number of rules.
+     */
+    private final List<PathMatcher> matchers;
+
+    private PatchScript(List<Rule> rules) {
+        this.rules = Collections.unmodifiableList(rules);
+
+        String[] patterns = new String[rules.size()];
+        for (int i=0; i<patterns.length; i++)
+            patterns[i] = rules.get(i).pattern;
+        PathMatcher all = PathMatchers.compile(patterns);
+        List<PathMatcher> matchers = new ArrayList<PathMatcher>(patterns.length);
+        for (int i=0; i<patterns.length; i++)
+            matchers.add(all.only(i));
+        this.matchers = matchers;
+    }
+
+    /**
+     * Number of rules in this script.
+     */
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * Creates a visitor that applies this script.
+     * Each scan needs its own visitor, as a visitor keeps track of where it is in the document.
+     *
+     * <p>
+     * The visitor has a {@linkplain XmlVisitor#getFingerprint() fingerprint}, so {@link ResultCache} works with it.
+     */
+    public XmlVisitor newVisitor() {
+        List<XmlVisitor> visitors = new ArrayList<XmlVisitor>(rules.size());
+        for (int i=0; i<rules.size(); i++)
+            visitors.add(rules.get(i).newVisitor(matchers.get(i)));
+        return new CompositeVisitor(visitors);
+    }
+
+    /**
+     * Applies this script to the document.
+     *
+     * @return
+     *      {@link XmlPatcher#isModified()}
+     */
+    public boolean applyTo(XmlPatcher xml) throws XMLStreamException {
+        return xml.scan(newVisitor());
+    }
+
+    /**
+     * Reads a script from a file in UTF-8.
+     */
+    public static PatchScript parse(File f) throws IOException {
+        return parse(FileUtils.readFileToString(f, "UTF-8"));
+    }
+
+    /**
+     * Compiles a script.
+     *
+     * @throws IllegalArgumentException
+     *      if the script is malformed. The message points to the line.
+     */
+    public static PatchScript parse(String script) {
+        List<Rule> rules = new ArrayList<Rule>();
+        String[] lines = script.split("\r?\n");
+        for (int i=0; i<lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.length()==0 || line.startsWith("#"))
+                continue;
+            try {
+                rules.add(parseRule(line));
+            } catch (IllegalArgumentException e) {
+                IllegalArgumentException x = new IllegalArgumentException("Line "+(i+1)+": "+e.getMessage());
+                x.initCause(e);
+                throw x;
+            }
+        }
+        return new PatchScript(rules);
+    }
+
+    private static Rule parseRule(String line) {
+        String[] t = split(line, 2);
+        PathMatcher.check(t[0]);
+        String op = t[1];
+        String args = t.length>2 ? t[2] : null;
+
+        if (op.equals("set-text")) {
+            final String text = escape(argument(op, args), false);
+            return new Rule(line, t[0]) {
+                XmlVisitor newVisitor(PathMatcher matcher) {
+                    return new ReplaceElementText(matcher) {
+                        @Override
+                        public String replace(String current) {
+                            return text;
+                        }
+
+                        @Override
+                        public String getFingerprint() {
+                            return fingerprint;
+                        }
+                    };
+                }
+            };
+        }
+        if (op.equals("insert-child")) {
+            final String xml = argument(op, args);
+            return new Rule(line, t[0]) {
+                XmlVisitor newVisitor(PathMatcher matcher) {
+                    return new InsertInElement(matcher) {
+                        @Override
+                        protected String insert() {
+                            return xml;
+                        }
+
+                        @Override
+                        public String getFingerprint() {
+                            return fingerprint;
+                        }
+                    };
+                }
+            };
+        }
+        if (op.equals("remove")) {
+            if (args!=null)
+                throw new IllegalArgumentException("remove takes no argument");
+            return new Rule(line, t[0]) {
+                XmlVisitor newVisitor(PathMatcher matcher) {
+                    return new RemoveElement(matcher) {
+                        @Override
+                        public String getFingerprint() {
+                            return fingerprint;
+                        }
+                    };
+                }
+            };
+        }
+        if (op.equals("set-attribute")) {
+            String[] a = split(argument(op, args), 1);
+            if (a.length<2)
+                throw new IllegalArgumentException("set-attribute needs a name and a value");
+            final String name = a[0];
+            final String value = escape(argument(op, a[1]), true);
+            return new Rule(line, t[0]) {
+                XmlVisitor newVisitor(PathMatcher matcher) {
+                    return new SetAttribute(matcher, name, value) {
+                        @Override
+                        public String getFingerprint() {
+                            return fingerprint;
+                        }
+                    };
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown operation: "+op);
+    }
+
+    /**
+     * One line of the script.
+     */
+    private static abstract class Rule {
+        /**
+         * The line itself identifies what the rule does.
+         */
+        final String fingerprint;
+
+        final String pattern;
+
+        Rule(String line, String pattern) {
+            this.fingerprint = line;
+            this.pattern = pattern;
+        }
+
+        abstract XmlVisitor newVisitor(PathMatcher matcher);
+    }
+
+    /**
+     * Splits the first n whitespace-separated tokens from the rest.
+     */
+    private static String[] split(String s, int n) {
+        List<String> r = new ArrayList<String>();
+        int i = 0;
+        while (r.size()<n) {
+            while (i<s.length() && Character.isWhitespace(s.charAt(i)))
+                i++;
+            int j = i;
+            while (j<s.length() && !Character.isWhitespace(s.charAt(j)))
+                j++;
+            if (i==j)
+                break;
+            r.add(s.substring(i, j));
+            i = j;
+        }
+        if (r.isEmpty())
+            throw new IllegalArgumentException("Expected a path and an operation");
+        if (r.size()<n)
+            throw new IllegalArgumentException("Expected an operation after "+r.get(0));
+        String rest = s.substring(i).trim();
+        if (rest.length()>0)
+            r.add(rest);
+        return r.toArray(new String[r.size()]);
+    }
+
+    /**
+     * Unquotes the argument if it's quoted.
+     */
+    private static String argument(String op, String arg) {
+        if (arg==null)
+            throw new IllegalArgumentException(op+" needs an argument");
+        if (!arg.startsWith("\""))
+            return arg;
+
+        StringBuilder buf = new StringBuilder();
+        for (int i=1; i<arg.length(); i++) {
+            char ch = arg.charAt(i);
+            if (ch=='"') {
+                if (i!=arg.length()-1)
+                    throw new IllegalArgumentException("Unexpected text after the closing quote: "+arg);
+                return buf.toString();
+            }
+            if (ch=='\\' && i+1<arg.length()) {
+                ch = arg.charAt(++i);
+                switch (ch) {
+                case 'n':   ch = '\n'; break;
+                case 't':   ch = '\t'; break;
+                case '"':
+                case '\\':  break;
+                default:
+                    throw new IllegalArgumentException("Unknown escape \\"+ch+" in "+arg);
+                }
+            }
+            buf.append(ch);
+        }
+        throw new IllegalArgumentException("Missing the closing quote: "+arg);
+    }
+
+    private static String escape(String s, boolean attribute) {
+        StringBuilder buf = new StringBuilder(s.length());
+        for (int i=0; i<s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+            case '&':   buf.append("&amp;"); break;
+            case '<':   buf.append("&lt;"); break;
+            case '>':   buf.append("&gt;"); break;
+            case '"':
+            case '\'':
+                // the existing value of an attribute may be in either kind of quotes
+                if (attribute)
+                    buf.append(ch=='"' ? "&quot;" : "&apos;");
+                else
+                    buf.append(ch);
+                break;
+            default:
+                buf.append(ch);
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,94 @@
+package org.kohsuke.maven.rewrite;
+
+/**
+ * Receives measurements from {@link XmlPatcher}, to find out where the time of a scan goes.
+ *
+ * <p>
+ * Register an instance with {@link XmlPatcher#setMetrics(PatcherMetrics)}. When no instance is registered,
+ * none of the measurements are taken. Methods are called synchronously from the scanning thread, so
+ * they should be cheap. All the methods do nothing by default, so subclasses only override what they need.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see PatcherStatistics
+ */
+public abstract class PatcherMetrics {
+    /**
+     * Visitor callbacks that are timed.
+     */
+    public enum Callback {
+        START_DOCUMENT {
+            void invoke(XmlVisitor v, XmlPatcher p) {
+                v.startDocument(p);
+            }
+        },
+        START_ELEMENT {
+            void invoke(XmlVisitor v, XmlPatcher p) {
+                v.startElement();
+            }
+        },
+        END_ELEMENT {
+            void invoke(XmlVisitor v, XmlPatcher p) {
+                v.endElement();
+            }
+        };
+
+        abstract void invoke(XmlVisitor v, XmlPatcher p);
+    }
+
+    /**
+     * Called when {@link XmlPatcher#scan(XmlVisitor)} starts.
+     */
+    public void scanStarted(XmlPatcher patcher) {}
+
+    /**
+     * Called for every event that the scan goes through, whether it's parsed or replayed from the index.
+     *
+     * @param eventType
+     *      One of the {@link javax.xml.stream.XMLStreamConstants}.
+     * @see XmlPatcher#setIndexed(boolean)
+     */
+    public void eventParsed(int eventType) {}
+
+    /**
+     * Called for every start tag, before visitors are called.
+     */
+    public void elementVisited(XmlPath path) {}
+
+    /**
+     * Called when a visitor callback returns. {@link CompositeVisitor} isn't timed by itself;
+     * the visitors it contains are.
+     *
+     * @param nanos
+     *      Wall clock time spent in the callback.
+     */
+    public void visitorCalled(XmlVisitor visitor, Callback callback, long nanos) {}
+
+    /**
+     * Called when an edit is applied to the document.
+     * In the journaled mode, this happens at the end of the scan.
+     *
+     * @param marksUpdated
+     *      Number of marks that had to be individually updated for this edit. Marks that just move along with the
+     *      text after the edit are moved in bulk, and they aren't counted.
+     */
+    public void editApplied(Edit edit, int marksUpdated) {}
+
+    /**
+     * Called when the {@link DocumentBuffer} is changed.
+     *
+     * @param charactersMoved
+     *      Number of characters that the buffer copied or shifted to make the change.
+     * @see DocumentBuffer#getCharactersMoved(int, int, int)
+     */
+    public void bufferChanged(int charactersMoved) {}
+
+    /**
+     * Called when {@link XmlPatcher#scan(XmlVisitor)} completes, successfully or not.
+     *
+     * @param nanos
+     *      Wall clock time of the whole scan.
+     * @param peakMarks
+     *      The largest number of live marks during the scan.
+     */
+    public void scanCompleted(XmlPatcher patcher, long nanos, int peakMarks) {}
+}
@@ -0,0 +1,125 @@
+package org.kohsuke.maven.rewrite;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link PatcherMetrics} that adds up the measurements of all the scans it's registered to.
+ *
+ * <p>
+ * This class is not thread-safe, so don't share one instance among patchers that are used concurrently.
+ * Time spent in visitors is added up by the class of the visitor, so that the visitors, and the documents
+ * they refer to, aren't kept alive by the statistics.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class PatcherStatistics extends PatcherMetrics {
+    private int scans;
+    private long scanTime;
+    private long eventsParsed;
+    private long elementsVisited;
+    private long editsApplied;
+    private long marksUpdated;
+    private long charactersMoved;
+    private int peakMarks;
+    private final Map<Class<?>,long[]> visitorTimes = new HashMap<Class<?>,long[]>();
+
+    @Override
+    public void eventParsed(int eventType) {
+        eventsParsed++;
+    }
+
+    @Override
+    public void elementVisited(XmlPath path) {
+        elementsVisited++;
+    }
+
+    @Override
+    public void visitorCalled(XmlVisitor visitor, Callback callback, long nanos) {
+        long[] t = visitorTimes.get(visitor.getClass());
+        if (t==null)
+            visitorTimes.put(visitor.getClass(), t = new long[1]);
+        t[0] += nanos;
+    }
+
+    @Override
+    public void editApplied(Edit edit, int marksUpdated) {
+        editsApplied++;
+        this.marksUpdated += marksUpdated;
+    }
+
+    @Override
+    public void bufferChanged(int charactersMoved) {
+        this.charactersMoved += charactersMoved;
+    }
+
+    @Override
+    public void scanCompleted(XmlPatcher patcher, long nanos, int peakMarks) {
+        scans++;
+        scanTime += nanos;
+        this.peakMarks = Math.max(this.peakMarks, peakMarks);
+    }
+
+    public int getScans() {
+        return scans;
+    }
+
+    /**
+     * Total wall clock time of the scans, in nanoseconds.
+     */
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    public long getEventsParsed() {
+        return eventsParsed;
+    }
+
+    public long getElementsVisited() {
+        return elementsVisited;
+    }
+
+    public long getEditsApplied() {
+        return editsApplied;
+    }
+
+    public long getMarksUpdated() {
+        return marksUpdated;
+    }
+
+    public long getCharactersMoved() {
+        return charactersMoved;
+    }
+
+    /**
+     * The largest number of live marks in any of the scans.
+     */
+    public int getPeakMarks() {
+        return peakMarks;
+    }
+
+    /**
+     * Total time spent in the callbacks of the visitors of the given class, in nanoseconds.
+     */
+    public long getVisitorTime(Class<? extends XmlVisitor> type) {
+        long[] t = visitorTimes.get(type);
+        return t==null ? 0 : t[0];
+    }
+
+    /**
+     * Total time spent in the callbacks of the visitors of the same class as the given one, in nanoseconds.
+     */
+    public long getVisitorTime(XmlVisitor v) {
+        return getVisitorTime(v.getClass());
+    }
+
+    @Override
+    public String toString() {
+        long visitors = 0;
+        for (long[] t : visitorTimes.values())
+            visitors += t[0];
+        return scans+" scans in "+(scanTime/1000000)+"ms ("+(visitors/1000000)+"ms in visitors): "
+                +eventsParsed+" events, "+elementsVisited+" elements, "+editsApplied+" edits, "
+                +marksUpdated+" marks updated, "+charactersMoved+" characters moved, peak "+peakMarks+" marks";
+    }
+}
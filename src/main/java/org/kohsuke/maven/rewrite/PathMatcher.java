@@ -0,0 +1,368 @@
+package org.kohsuke.maven.rewrite;
+
+import com.google.common.base.Predicate;
+
+import javax.xml.namespace.QName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches {@link XmlPath} against a set of path patterns.
+ *
+ * <p>
+ * Patterns are compiled into a state machine that's advanced by one element name at a time,
+ * so matching an element costs a hash lookup no matter how many patterns there are, and the state
+ * of the parent element is reused for its children. States are built lazily, as they are reached.
+ *
+ * <p>
+ * Instances are thread-safe, so one matcher can be used by any number of scans concurrently.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see PathMatchers#compile(String...)
+ */
+public final class PathMatcher implements Predicate<XmlPath> {
+    private final String[] patterns;
+
+    /**
+     * Steps of all the patterns, concatenated. A position in the state machine is an index in this array,
+     * and a position past the last step of a pattern points to a null.
+     */
+    private final Step[] steps;
+
+    private final State initial;
+
+    /**
+     * State that can never reach an accepting state.
+     */
+    private final State dead;
+
+    private final Map<Key,State> states;
+
+    /**
+     * For each accepting position in {@link #steps}, the index of the pattern that it ends.
+     */
+    private final int[] patternOf;
+
+    private final Set<String> requiredNames;
+
+    /**
+     * The matcher whose state machine this matcher runs, which is itself unless this matcher is
+     * created by {@link #only(int)}.
+     */
+    private final PathMatcher all;
+
+    /**
+     * Index of the pattern of {@link #all} that this matcher accepts, or -1 to accept any of them.
+     */
+    private final int index;
+
+    PathMatcher(String... patterns) {
+        this.patterns = patterns.clone();
+        this.states = new HashMap<Key,State>();
+        this.all = this;
+        this.index = -1;
+
+        List<Step> steps = new ArrayList<Step>();
+        List<Integer> ends = new ArrayList<Integer>();
+        int[] init = new int[patterns.length];
+        Set<String> required = null;
+        for (int i=0; i<patterns.length; i++) {
+            init[i] = steps.size();
+            List<Step> p = parse(patterns[i]);
+            steps.addAll(p);
+            ends.add(steps.size());
+            steps.add(null);    // accepting position
+
+            Set<String> names = names(p);
+            if (required==null)
+                required = names;
+            else
+                required.retainAll(names);
+        }
+        this.requiredNames = Collections.unmodifiableSet(required!=null ? required : Collections.<String>emptySet());
+        this.steps = steps.toArray(new Step[steps.size()]);
+        this.patternOf = new int[this.steps.length];
+        for (int i=0; i<ends.size(); i++)
+            patternOf[ends.get(i)] = i;
+        this.dead = state(new int[0]);
+        this.initial = state(init);
+    }
+
+    private PathMatcher(PathMatcher all, int index) {
+        this.patterns = new String[]{all.patterns[index]};
+        this.steps = all.steps;
+        this.initial = all.initial;
+        this.dead = all.dead;
+        this.states = all.states;
+        this.patternOf = all.patternOf;
+        this.requiredNames = Collections.unmodifiableSet(names(parse(patterns[0])));
+        this.all = all;
+        this.index = index;
+    }
+
+    /**
+     * Matcher that only accepts what the pattern of the given index accepts.
+     *
+     * <p>
+     * It shares the state machine with this matcher, so any number of them together cost as much as this matcher
+     * when they are applied to the same elements. This is how a set of rules that each have their own pattern,
+     * such as {@link PatchScript}, avoids running one state machine per rule.
+     */
+    /*package*/ PathMatcher only(int index) {
+        if (this.index>=0)
+            throw new IllegalStateException(this+" is already a single pattern");
+        return new PathMatcher(this, index);
+    }
+
+    /**
+     * The patterns that this matcher was compiled from.
+     */
+    public String[] getPatterns() {
+        return patterns.clone();
+    }
+
+    /**
+     * Local names that appear in all the patterns. An element can only match if the document has elements
+     * of all these names.
+     *
+     * @see XmlVisitor#getRequiredLiterals()
+     */
+    public Set<String> getRequiredNames() {
+        return requiredNames;
+    }
+
+    public boolean apply(XmlPath path) {
+        if (path==null)
+            return false;
+        State s = all.stateOf(path);
+        return index<0 ? s.accepting : s.accepts(index);
+    }
+
+    /**
+     * Computes the state for the given path, starting from the nearest ancestor whose state is known.
+     */
+    private State stateOf(XmlPath path) {
+        State s = (State)path.getMatchState(this);
+        if (s!=null)
+            return s;
+
+        List<XmlPath> todo = new ArrayList<XmlPath>();
+        s = initial;
+        for (XmlPath p=path; p!=null; p=p.getParent()) {
+            State x = (State)p.getMatchState(this);
+            if (x!=null) {
+                s = x;
+                break;
+            }
+            todo.add(p);
+        }
+
+        for (int i=todo.size()-1; i>=0; i--) {
+            XmlPath p = todo.get(i);
+            s = s.next(p.getName());
+            p.setMatchState(this,s);
+        }
+        return s;
+    }
+
+    private synchronized State state(int[] positions) {
+        Key k = new Key(positions);
+        State s = states.get(k);
+        if (s==null)
+            states.put(k, s = new State(positions));
+        return s;
+    }
+
+    private synchronized State computeNext(State from, QName name) {
+        State s = from.transitions.get(name);
+        if (s!=null)
+            return s;
+
+        int[] next = new int[from.positions.length*2];
+        int n = 0;
+        for (int pos : from.positions) {
+            Step step = steps[pos];
+            if (step==null)
+                continue;   // the end of the pattern. nothing can follow it
+            if (step.descendant)
+                n = add(next,n,pos);    // this element is one of the skipped ancestors
+            if (step.matches(name))
+                n = add(next,n,pos+1);
+        }
+        s = n==0 ? dead : state(sort(next,n));
+        from.transitions.put(name, s);
+        return s;
+    }
+
+    private static int add(int[] buf, int n, int pos) {
+        for (int i=0; i<n; i++)
+            if (buf[i]==pos)
+                return n;
+        buf[n] = pos;
+        return n+1;
+    }
+
+    private static int[] sort(int[] buf, int n) {
+        int[] r = new int[n];
+        System.arraycopy(buf,0,r,0,n);
+        Arrays.sort(r);
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.asList(patterns).toString();
+    }
+
+    /**
+     * A set of positions in the patterns.
+     */
+    private final class State {
+        final int[] positions;
+        final boolean accepting;
+        /**
+         * Indices of the patterns that accept, in ascending order.
+         */
+        final int[] accepts;
+        final Map<QName,State> transitions = new ConcurrentHashMap<QName,State>();
+
+        State(int[] positions) {
+            this.positions = positions;
+            int n = 0;
+            for (int p : positions)
+                if (steps[p]==null)
+                    n++;
+            this.accepts = new int[n];
+            n = 0;
+            for (int p : positions)
+                if (steps[p]==null)
+                    accepts[n++] = patternOf[p];
+            this.accepting = n>0;
+        }
+
+        boolean accepts(int pattern) {
+            return Arrays.binarySearch(accepts, pattern)>=0;
+        }
+
+        State next(QName name) {
+            if (this==dead)
+                return this;
+            State s = transitions.get(name);
+            if (s==null)
+                s = computeNext(this, name);
+            return s;
+        }
+    }
+
+    private static final class Key {
+        private final int[] positions;
+        private final int hash;
+
+        Key(int[] positions) {
+            this.positions = positions;
+            this.hash = Arrays.hashCode(positions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(positions, ((Key)o).positions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * One step in the pattern, which matches one element.
+     */
+    private static final class Step {
+        /**
+         * Namespace URI to match, or null to match any namespace.
+         */
+        final String uri;
+        /**
+         * Local name to match, or null to match any name.
+         */
+        final String localName;
+        /**
+         * If this step is preceded by '//', so that it can match any descendant.
+         */
+        final boolean descendant;
+
+        Step(String uri, String localName, boolean descendant) {
+            this.uri = uri;
+            this.localName = localName;
+            this.descendant = descendant;
+        }
+
+        boolean matches(QName name) {
+            return (localName==null || localName.equals(name.getLocalPart()))
+                && (uri==null || uri.equals(name.getNamespaceURI()));
+        }
+    }
+
+    /**
+     * Checks that the pattern is well-formed, without compiling it.
+     *
+     * @throws IllegalArgumentException
+     *      if it isn't.
+     */
+    /*package*/ static void check(String pattern) {
+        parse(pattern);
+    }
+
+    /**
+     * Local names in the steps.
+     */
+    private static Set<String> names(List<Step> steps) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (Step s : steps)
+            if (s.localName!=null)
+                names.add(s.localName);
+        return names;
+    }
+
+    /**
+     * Parses a pattern like "/a//b/{uri}c/*".
+     */
+    private static List<Step> parse(String pattern) {
+        if (!pattern.startsWith("/"))
+            throw new IllegalArgumentException("Path pattern has to start with '/': "+pattern);
+
+        List<Step> r = new ArrayList<Step>();
+        int i = 0;
+        int len = pattern.length();
+        while (i<len) {
+            // at '/'
+            boolean descendant = pattern.startsWith("//",i);
+            i += descendant ? 2 : 1;
+
+            String uri = null;
+            if (i<len && pattern.charAt(i)=='{') {
+                int j = pattern.indexOf('}',i);
+                if (j<0)
+                    throw new IllegalArgumentException("Unterminated namespace URI in "+pattern);
+                uri = pattern.substring(i+1,j);
+                i = j+1;
+            }
+
+            int j = pattern.indexOf('/',i);
+            if (j<0)    j = len;
+            String name = pattern.substring(i,j);
+            if (name.length()==0)
+                throw new IllegalArgumentException("Empty step in "+pattern);
+            r.add(new Step(uri, name.equals("*") ? null : name, descendant));
+            i = j;
+        }
+        return r;
+    }
+}
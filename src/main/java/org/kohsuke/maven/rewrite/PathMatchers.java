@@ -2,15 +2,72 @@ package org.kohsuke.maven.rewrite;
 
 import com.google.common.base.Predicate;
 
+import java.util.Collection;
+
 /**
+ * Factory for {@link XmlPath} predicates.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class PathMatchers {
+    /**
+     * Matches elements by the local names of them and their ancestors, such as "/project/dependencies",
+     * regardless of their namespaces.
+     *
+     * <p>
+     * The path is compared literally, as in {@link XmlPath#matches(String)}. Characters that are special to
+     * {@link #compile(String...)}, such as '*', have no special meaning here, and a path that can't be the local
+     * names of any element, such as one without the leading '/', never matches. Use {@link #compile(String...)}
+     * for patterns.
+     */
     public static Predicate<XmlPath> localNames(final String path) {
+        if (isLiteral(path))
+            return compile(path);   // same thing, but it also knows the names it requires
         return new Predicate<XmlPath>() {
-            public boolean apply(XmlPath input) {
-                return input!=null && input.getLocalNames().equals(path);
+            public boolean apply(XmlPath p) {
+                return p!=null && p.matches(path);
             }
         };
     }
+
+    /**
+     * Checks if the path means the same thing as a pattern.
+     */
+    private static boolean isLiteral(String path) {
+        if (!path.startsWith("/") || path.endsWith("/") || path.contains("//"))
+            return false;
+        for (int i=0; i<path.length(); i++) {
+            char ch = path.charAt(i);
+            if (ch=='*' || ch=='{' || ch=='}')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compiles path patterns into a matcher that matches an element if any of the patterns matches it.
+     *
+     * <p>
+     * A pattern is a list of steps like "/project/dependencies/dependency", where each step is separated by
+     * '/' to match a child, or by '//' to match a descendant at any depth. A step is either a local name,
+     * which matches elements of that name in any namespace, "{uri}name" that only matches the given namespace
+     * ("{}name" for no namespace), or '*' that matches any element.
+     *
+     * @throws IllegalArgumentException
+     *      if any of the patterns is malformed.
+     */
+    public static PathMatcher compile(String... patterns) {
+        return new PathMatcher(patterns);
+    }
+
+    /**
+     * Element names that the given predicate needs to see in a document before it can match anything,
+     * for {@link XmlVisitor#getRequiredLiterals()} of visitors that act on the matching elements.
+     *
+     * @return
+     *      null unless the predicate is a {@link PathMatcher}, as nothing is known about others.
+     */
+    public static Collection<String> requiredNames(Predicate<XmlPath> matcher) {
+        return matcher instanceof PathMatcher ? ((PathMatcher)matcher).getRequiredNames() : null;
+    }
 }
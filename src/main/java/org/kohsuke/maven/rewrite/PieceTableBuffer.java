@@ -0,0 +1,345 @@
+package org.kohsuke.maven.rewrite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link DocumentBuffer} that represents the document as a sequence of pieces.
+ *
+ * <p>
+ * Each piece refers to a range of an immutable character sequence, which is either the original document
+ * or a replacement text. Pieces are kept in a balanced tree (a treap keyed by the position in the document),
+ * so an edit only splits a piece or two and rebuilds O(log n) nodes, instead of shifting the rest of the document.
+ *
+ * <p>
+ * Nodes are never modified once created. This makes {@link #openReader()} and {@link #snapshot()} cheap,
+ * as a reader or a snapshot just holds on to the tree as of the time it was taken.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class PieceTableBuffer extends DocumentBuffer {
+    private Piece root;
+
+    /**
+     * State of the pseudo-random number generator for treap priorities.
+     */
+    private int seed = 0x2545F491;
+
+    /**
+     * If this is a {@link #snapshot()}.
+     */
+    private final boolean readOnly;
+
+    /**
+     * @param text
+     *      Initial content of the document. This character sequence must not change afterward.
+     */
+    public PieceTableBuffer(CharSequence text) {
+        this.readOnly = false;
+        if (text.length()>0)
+            root = new Piece(text,0,text.length(),null,null,nextPriority());
+    }
+
+    /**
+     * Creates a document that's the concatenation of the given pieces, which must not change afterward.
+     */
+    /*package*/ PieceTableBuffer(List<? extends CharSequence> pieces) {
+        this.readOnly = false;
+        for (CharSequence p : pieces)
+            if (p.length()>0)
+                root = merge(root, new Piece(p,0,p.length(),null,null,nextPriority()));
+    }
+
+    private PieceTableBuffer(Piece root) {
+        this.root = root;
+        this.readOnly = true;
+    }
+
+    private int nextPriority() {
+        // xorshift
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    @Override
+    public int length() {
+        return size(root);
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index<0 || index>=length())
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+
+        Piece p = root;
+        while (true) {
+            int sl = size(p.left);
+            if (index<sl) {
+                p = p.left;
+                continue;
+            }
+            index -= sl;
+            if (index<p.len)
+                return p.src.charAt(p.off+index);
+            index -= p.len;
+            p = p.right;
+        }
+    }
+
+    @Override
+    public String substring(int start, int end) {
+        if (start<0 || end>length() || start>end)
+            throw new IndexOutOfBoundsException(start+","+end);
+        StringBuilder buf = new StringBuilder(end-start);
+        append(root,start,end,buf);
+        return buf.toString();
+    }
+
+    /**
+     * Appends the [start,end) portion of the given subtree.
+     */
+    private static void append(Piece p, int start, int end, StringBuilder buf) {
+        while (p!=null && start<end) {
+            int sl = size(p.left);
+            if (start<sl)
+                append(p.left,start,Math.min(end,sl),buf);
+            int s = Math.max(start-sl,0);
+            int e = Math.min(end-sl,p.len);
+            if (s<e)
+                buf.append(p.src,p.off+s,p.off+e);
+            // tail recursion on the right subtree
+            start -= sl+p.len;
+            end -= sl+p.len;
+            start = Math.max(start,0);
+            p = p.right;
+        }
+    }
+
+    @Override
+    public void replace(int start, int end, String replacement) {
+        if (readOnly)
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        if (start<0 || end>length() || start>end)
+            throw new IndexOutOfBoundsException(start+","+end);
+
+        Piece[] a = split(root, start);
+        Piece[] b = split(a[1], end - start);
+        Piece middle = null;
+        if (replacement.length()>0)
+            middle = new Piece(replacement,0,replacement.length(),null,null,nextPriority());
+        root = merge(merge(a[0], middle), b[1]);
+    }
+
+    /**
+     * Edits only create new pieces that refer to the replacement, so no text is ever moved.
+     */
+    @Override
+    public int getCharactersMoved(int start, int end, int replacementLength) {
+        return 0;
+    }
+
+    @Override
+    public int getCharactersMoved(List<Edit> edits) {
+        return 0;
+    }
+
+    @Override
+    public void writeTo(Writer w) throws IOException {
+        Reader r = openReader();
+        char[] buf = new char[8192];
+        int len;
+        while ((len=r.read(buf))>=0)
+            w.write(buf,0,len);
+    }
+
+    /**
+     * Writes the document as bytes in the encoding of the file that {@link MappedText} pieces refer to.
+     * Those pieces are copied from the file byte for byte, and only the rest of the text is encoded.
+     */
+    /*package*/ void writeTo(OutputStream out, String encoding) throws IOException {
+        Writer w = new OutputStreamWriter(out, encoding);
+        writeTo(root, out, w);
+        w.flush();
+    }
+
+    private static void writeTo(Piece p, OutputStream out, Writer w) throws IOException {
+        for (; p!=null; p=p.right) {
+            writeTo(p.left, out, w);
+            if (p.src instanceof MappedText) {
+                w.flush();
+                ((MappedText)p.src).copyTo(out, p.off, p.off+p.len);
+            } else {
+                w.append(p.src, p.off, p.off+p.len);
+            }
+        }
+    }
+
+    @Override
+    public Reader openReader() {
+        return new PieceReader(root);
+    }
+
+    /**
+     * Splitting the tree doesn't modify it, so this is as cheap as {@link #openReader()}.
+     */
+    @Override
+    public Reader openReader(int start) {
+        return new PieceReader(split(root, start)[1]);
+    }
+
+    /**
+     * Takes constant time and memory, as the snapshot shares the tree with this buffer.
+     */
+    @Override
+    public PieceTableBuffer snapshot() {
+        return new PieceTableBuffer(root);
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, length());
+    }
+
+    private static int size(Piece p) {
+        return p==null ? 0 : p.size;
+    }
+
+    /**
+     * Splits the tree into two, where the first one contains the first 'index' characters and the second
+     * contains the rest.
+     */
+    private static Piece[] split(Piece p, int index) {
+        if (p==null)
+            return new Piece[2];
+
+        int sl = size(p.left);
+        if (index<=sl) {
+            Piece[] x = split(p.left, index);
+            x[1] = p.with(x[1], p.right);
+            return x;
+        }
+        if (index>=sl+p.len) {
+            Piece[] x = split(p.right, index-sl-p.len);
+            x[0] = p.with(p.left, x[0]);
+            return x;
+        }
+
+        // the split point is inside this piece
+        int n = index-sl;
+        return new Piece[] {
+            new Piece(p.src, p.off, n, p.left, null, p.priority),
+            new Piece(p.src, p.off+n, p.len-n, null, p.right, p.priority)
+        };
+    }
+
+    /**
+     * Concatenates two trees.
+     */
+    private static Piece merge(Piece a, Piece b) {
+        if (a==null)    return b;
+        if (b==null)    return a;
+        if (a.priority>b.priority)
+            return a.with(a.left, merge(a.right,b));
+        else
+            return b.with(merge(a,b.left), b.right);
+    }
+
+    /**
+     * Immutable tree node that points to a range [off,off+len) of a character sequence.
+     */
+    private static final class Piece {
+        final CharSequence src;
+        final int off, len;
+        final Piece left, right;
+        final int priority;
+        /**
+         * Number of characters in this subtree.
+         */
+        final int size;
+
+        Piece(CharSequence src, int off, int len, Piece left, Piece right, int priority) {
+            this.src = src;
+            this.off = off;
+            this.len = len;
+            this.left = left;
+            this.right = right;
+            this.priority = priority;
+            this.size = size(left)+len+size(right);
+        }
+
+        Piece with(Piece left, Piece right) {
+            if (left==this.left && right==this.right)
+                return this;
+            return new Piece(src,off,len,left,right,priority);
+        }
+    }
+
+    /**
+     * Reads pieces in the order, without copying them into an intermediate buffer.
+     */
+    private static final class PieceReader extends Reader {
+        /**
+         * Nodes whose piece and right subtree are yet to be read.
+         */
+        private final List<Piece> stack = new ArrayList<Piece>();
+        private Piece current;
+        private int pos;
+
+        PieceReader(Piece root) {
+            pushLeft(root);
+            advance();
+        }
+
+        private void pushLeft(Piece p) {
+            for (; p!=null; p=p.left)
+                stack.add(p);
+        }
+
+        private void advance() {
+            if (stack.isEmpty()) {
+                current = null;
+            } else {
+                current = stack.remove(stack.size()-1);
+                pushLeft(current.right);
+            }
+            pos = 0;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            if (len==0)
+                return 0;
+            while (current!=null && pos==current.len)
+                advance();
+            if (current==null)
+                return -1;
+
+            int n = Math.min(len, current.len-pos);
+            CharSequence src = current.src;
+            int s = current.off+pos;
+            if (src instanceof String) {
+                ((String)src).getChars(s,s+n,buf,off);
+            } else if (src instanceof MappedText) {
+                ((MappedText)src).getChars(s,s+n,buf,off);
+            } else {
+                for (int i=0; i<n; i++)
+                    buf[off+i] = src.charAt(s+i);
+            }
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            stack.clear();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.kohsuke.maven.rewrite;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Remembers the edits that scans made, so that scanning the same document with the same visitor
+ * again applies the edits without parsing the document.
+ *
+ * <p>
+ * Results are keyed by the SHA-256 of the document and the {@linkplain XmlVisitor#getFingerprint() fingerprint}
+ * of the visitor, and stored as edit lists in files in a directory, one file per result. When the files take up
+ * more than the given size, the least recently used ones are deleted. The directory can be shared by any number
+ * of patchers, threads, and processes.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see XmlPatcher#setResultCache(ResultCache)
+ */
+public class ResultCache {
+    private static final int MAGIC = 0x58504331;    // "XPC1"
+
+    private final File dir;
+    private final long maxSize;
+
+    /**
+     * Size of the files in the directory as far as we know, or -1 if we need to look.
+     */
+    private long size = -1;
+
+    /**
+     * @param maxSize
+     *      Number of bytes that the results can take up in the directory.
+     */
+    public ResultCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Computes the key of the result of scanning the given document with the visitor of the given fingerprint.
+     */
+    public String key(String fingerprint, DocumentBuffer doc) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        md.update(fingerprint.getBytes("UTF-8"));
+        md.update((byte)0);
+
+        char[] buf = new char[8192];
+        byte[] bytes = new byte[buf.length*2];
+        Reader r = doc.openReader();
+        try {
+            int n;
+            while ((n=r.read(buf))>=0) {
+                for (int i=0; i<n; i++) {
+                    bytes[i*2] = (byte)(buf[i]>>8);
+                    bytes[i*2+1] = (byte)buf[i];
+                }
+                md.update(bytes, 0, n*2);
+            }
+        } finally {
+            IOUtil.close(r);
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : md.digest())
+            key.append(Character.forDigit((b>>4)&15, 16)).append(Character.forDigit(b&15, 16));
+        return key.toString();
+    }
+
+    /**
+     * Gets the edits stored for the key.
+     *
+     * @return
+     *      null if there's no result for the key. Offsets of the edits refer to the document before the scan.
+     */
+    public List<Edit> get(String key) {
+        File f = new File(dir, key);
+        if (!f.exists())
+            return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt()!=MAGIC)
+                throw new IOException("Not a result file: "+f);
+            int n = in.readInt();
+            List<Edit> edits = new ArrayList<Edit>(n);
+            for (int i=0; i<n; i++) {
+                int start = in.readInt();
+                int end = in.readInt();
+                char[] text = new char[in.readInt()];
+                for (int j=0; j<text.length; j++)
+                    text[j] = in.readChar();
+                edits.add(new Edit(start, end, new String(text)));
+            }
+            f.setLastModified(System.currentTimeMillis());
+            return edits;
+        } catch (IOException e) {
+            // broken, or deleted by someone else while we were reading it. either way it's a miss
+            IOUtil.close(in);
+            in = null;
+            f.delete();
+            return null;
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    /**
+     * Stores the edits for the key, then evicts old results if the directory has grown too big.
+     */
+    public void put(String key, List<Edit> edits) throws IOException {
+        dir.mkdirs();
+        File tmp = File.createTempFile(key, ".tmp", dir);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(edits.size());
+                for (Edit e : edits) {
+                    out.writeInt(e.getStart());
+                    out.writeInt(e.getEnd());
+                    out.writeInt(e.getReplacement().length());
+                    out.writeChars(e.getReplacement());
+                }
+            } finally {
+                out.close();
+            }
+
+            File f = new File(dir, key);
+            long len = tmp.length();
+            long old = f.length();
+            if (!f.delete())    // renameTo doesn't replace files on some platforms
+                old = 0;
+            if (tmp.renameTo(f))
+                grew(len-old);
+            else
+                grew(-old);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private synchronized void grew(long len) {
+        if (size>=0)
+            size += len;
+        if (size<0 || size>maxSize)
+            evict();
+    }
+
+    /**
+     * Deletes the least recently used results until the rest fits in {@link #maxSize}.
+     */
+    private void evict() {
+        File[] files = listResults();
+        if (files==null)
+            files = new File[0];
+        final long[] used = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        long total = 0;
+        for (int i=0; i<files.length; i++) {
+            used[i] = files[i].lastModified();
+            order[i] = i;
+            total += files[i].length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return used[a]<used[b] ? -1 : used[a]==used[b] ? 0 : 1;
+            }
+        });
+        for (int i=0; i<order.length && total>maxSize; i++) {
+            File f = files[order[i]];
+            long len = f.length();
+            if (f.delete())
+                total -= len;
+        }
+        size = total;
+    }
+
+    /**
+     * Deletes all the results.
+     */
+    public synchronized void clear() {
+        File[] files = listResults();
+        for (File f : files!=null ? Arrays.asList(files) : Collections.<File>emptyList())
+            f.delete();
+        size = 0;
+    }
+
+    /**
+     * Lists the result files, leaving out the ones that other writers are still writing.
+     */
+    private File[] listResults() {
+        return dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return !f.getName().endsWith(".tmp");
+            }
+        });
+    }
+}
@@ -0,0 +1,164 @@
+package org.kohsuke.maven.rewrite;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * {@link DocumentBuffer} that only keeps a window of the document in memory.
+ *
+ * <p>
+ * Text is read from the input as the parser asks for it, and as {@link XmlPatcher#scan(XmlVisitor)}
+ * advances, the text that no {@link Mark} points to anymore is written to the output and discarded.
+ * This allows a document of any size to be patched in a bounded amount of memory, as long as visitors
+ * don't hold on to marks far behind the current position. Trying to read or edit text that has already
+ * been written out results in {@link IllegalStateException}.
+ *
+ * <p>
+ * Because the document is consumed as it's scanned, it can be only scanned once, and the scan cannot be
+ * {@linkplain XmlPatcher#setJournaled(boolean) journaled}. Both the input and the output are closed
+ * when the scan completes, successfully or not. When the scan fails, the output is left truncated at
+ * wherever the scan got to, so it should be discarded.
+ *
+ * <p>
+ * Offsets are {@code int}s, like everywhere else in {@link XmlPatcher}, so a streaming document can be
+ * at most {@link Integer#MAX_VALUE} characters long, no matter how little of it is kept in memory.
+ * Reading past that fails with {@link IllegalStateException} rather than letting the offsets wrap around.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see XmlPatcher#XmlPatcher(java.io.InputStream, java.io.OutputStream)
+ */
+public class StreamingBuffer extends DocumentBuffer {
+    /**
+     * Don't bother writing out text until this many characters can be discarded.
+     */
+    private static final int FLUSH_THRESHOLD = 16*1024;
+
+    private final Reader in;
+    private final Writer out;
+
+    /**
+     * Text that's been read but not written out yet.
+     */
+    private final StringBuilder window = new StringBuilder();
+
+    /**
+     * Offset of the first character in {@link #window} in the document.
+     */
+    private int base;
+
+    private boolean opened;
+
+    public StreamingBuffer(Reader in, Writer out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public int length() {
+        return base+window.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        check(index);
+        return window.charAt(index-base);
+    }
+
+    @Override
+    public String substring(int start, int end) {
+        check(start);
+        return window.substring(start-base, end-base);
+    }
+
+    @Override
+    public void replace(int start, int end, String replacement) {
+        check(start);
+        window.replace(start-base, end-base, replacement);
+    }
+
+    private void check(int index) {
+        if (index<base)
+            throw new IllegalStateException("Offset "+index+" has already been written out. Streaming window starts at "+base);
+    }
+
+    @Override
+    public void writeTo(Writer w) {
+        throw new UnsupportedOperationException("Streaming document is written as it's scanned");
+    }
+
+    @Override
+    public DocumentBuffer snapshot() {
+        throw new UnsupportedOperationException("Streaming document only keeps a window of the text");
+    }
+
+    @Override
+    public Reader openReader() {
+        if (opened)
+            throw new IllegalStateException("Streaming document can be only scanned once");
+        opened = true;
+        return new Reader() {
+            @Override
+            public int read(char[] buf, int off, int len) throws IOException {
+                int n = in.read(buf, off, len);
+                if (n>0) {
+                    if ((long)length()+n>Integer.MAX_VALUE)
+                        throw new IllegalStateException("Streaming document is longer than "+Integer.MAX_VALUE+" characters");
+                    window.append(buf, off, n);
+                }
+                return n;
+            }
+
+            @Override
+            public void close() {
+                // the input is closed when the scan completes
+            }
+        };
+    }
+
+    /**
+     * Number of characters kept in memory.
+     */
+    /*package*/ int getWindowSize() {
+        return window.length();
+    }
+
+    /**
+     * Tells this buffer that text before the given offset will never be accessed again.
+     */
+    /*package*/ void discardBefore(int offset) throws IOException {
+        int n = offset-base;
+        // avoid shifting the window for every event
+        if (n>=FLUSH_THRESHOLD && n>=window.length()/2) {
+            out.append(window, 0, n);
+            window.delete(0, n);
+            base = offset;
+        }
+    }
+
+    /**
+     * Writes out everything, including the part of the input that the parser didn't read.
+     */
+    /*package*/ void finish() throws IOException {
+        out.append(window);
+        base += window.length();
+        window.setLength(0);
+
+        char[] buf = new char[8192];
+        int len;
+        while ((len=in.read(buf))>=0)
+            out.write(buf,0,len);
+        in.close();
+        out.close();
+    }
+
+    /**
+     * Closes the input and the output, if {@link #finish()} didn't get to.
+     */
+    /*package*/ void close() {
+        IOUtils.closeQuietly(in);
+        IOUtils.closeQuietly(out);
+    }
+}
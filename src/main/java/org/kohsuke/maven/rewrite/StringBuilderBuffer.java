@@ -0,0 +1,104 @@
+package org.kohsuke.maven.rewrite;
+
+import java.util.List;
+
+/**
+ * {@link DocumentBuffer} that edits a {@link StringBuilder} in place.
+ *
+ * <p>
+ * Every edit shifts the rest of the document, so this is only suitable for small documents,
+ * or when the caller wants to see the edits in its own {@link StringBuilder}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class StringBuilderBuffer extends DocumentBuffer {
+    private final StringBuilder xml;
+
+    /**
+     * Last {@link #snapshot()}, which is good until the next edit.
+     */
+    private DocumentBuffer snapshot;
+
+    public StringBuilderBuffer(StringBuilder xml) {
+        this.xml = xml;
+    }
+
+    @Override
+    public int length() {
+        return xml.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return xml.charAt(index);
+    }
+
+    @Override
+    public String substring(int start, int end) {
+        return xml.substring(start, end);
+    }
+
+    @Override
+    public int indexOf(String str) {
+        return xml.indexOf(str);
+    }
+
+    @Override
+    public void replace(int start, int end, String replacement) {
+        snapshot = null;
+        xml.replace(start, end, replacement);
+    }
+
+    /**
+     * Rebuilds the document in a single left-to-right pass, instead of shifting the tail for every edit.
+     */
+    @Override
+    public void apply(List<Edit> edits) {
+        if (edits.isEmpty())
+            return;
+        snapshot = null;
+
+        int len = xml.length();
+        for (Edit e : edits)
+            len += e.getDelta();
+
+        StringBuilder buf = new StringBuilder(len);
+        int pos = 0;
+        for (Edit e : edits) {
+            buf.append(xml, pos, e.getStart());
+            buf.append(e.getReplacement());
+            pos = e.getEnd();
+        }
+        buf.append(xml, pos, xml.length());
+
+        xml.setLength(0);
+        xml.append(buf);
+    }
+
+    @Override
+    public int getCharactersMoved(List<Edit> edits) {
+        if (edits.isEmpty())
+            return 0;
+        int len = xml.length();
+        for (Edit e : edits)
+            len += e.getDelta();
+        // once to build the new document, then once to copy it back
+        return len*2;
+    }
+
+    /**
+     * Copies the document for the first snapshot after an edit, and hands out the same copy until the next edit.
+     * Changes made to the {@link StringBuilder} without going through this buffer are not noticed.
+     */
+    @Override
+    public DocumentBuffer snapshot() {
+        if (snapshot==null)
+            snapshot = super.snapshot();
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return xml.toString();
+    }
+}
@@ -0,0 +1,513 @@
+package org.kohsuke.maven.rewrite;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a document into tokens, and reports exactly where each of them starts and ends.
+ *
+ * <p>
+ * This is not a full XML parser. It recognizes markup well enough to find the boundaries of tokens,
+ * resolves the namespaces of element names, and checks that end tags match start tags, but it doesn't
+ * expand entities or look at attribute values other than namespace declarations, as {@link XmlPatcher} never
+ * needs them. When the document isn't well-formed, tokens end where the problem is.
+ *
+ * <p>
+ * Token kinds are those of {@link XMLStreamConstants}. An empty element like &lt;a/> is reported as an empty
+ * start tag followed by the end tag that covers it, just like {@link XmlPatcher} reports it with StAX.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see XmlPatcher#setNativeTokenizer(boolean)
+ */
+final class Tokenizer {
+    private final Reader in;
+    private final NameTable names;
+
+    private char[] buf = new char[8192];
+    /**
+     * Offset of buf[0] in the document.
+     */
+    private int base;
+    /**
+     * Index in {@link #buf} where the next token starts.
+     */
+    private int pos;
+    /**
+     * Number of characters in {@link #buf}.
+     */
+    private int limit;
+    private boolean eof;
+
+    private int kind = -1, start, end, nameId = -1;
+    private int tagEnd;
+
+    /**
+     * End of the empty element whose start tag was just reported, or -1.
+     */
+    private int emptyEnd = -1;
+
+    /**
+     * Names of the open elements, and the number of namespace bindings outside each.
+     */
+    private Name[] open = new Name[16];
+    private int[] ids = new int[16];
+    private int[] scopes = new int[16];
+    private int depth;
+
+    /**
+     * Namespace bindings in scope. Later ones shadow earlier ones.
+     */
+    private String[] prefixes = new String[8], uris = new String[8];
+    private int bindings;
+
+    /**
+     * Hash table of the element names seen so far, so that they are looked up straight from {@link #buf}.
+     */
+    private Name[] table = new Name[64];
+    private int tableSize;
+
+    /**
+     * Element name as it's written in the tag, and the name id it had the last time it was seen.
+     */
+    private static final class Name {
+        final String raw, prefix, local;
+        final int hash;
+        Name next;
+        /**
+         * Namespace URI that {@link #id} is for. The same prefix can be bound to different URIs.
+         */
+        String uri;
+        int id = -1;
+
+        Name(String raw, int hash) {
+            this.raw = raw;
+            this.hash = hash;
+            int colon = raw.indexOf(':');
+            this.prefix = colon<0 ? "" : raw.substring(0, colon);
+            this.local = raw.substring(colon+1);
+        }
+    }
+
+    Tokenizer(Reader in, NameTable names) {
+        this.in = in;
+        this.names = names;
+    }
+
+    int kind() {
+        return kind;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return end;
+    }
+
+    /**
+     * {@link NameTable} id of the element name, or -1 if this is not an element.
+     */
+    int nameId() {
+        return nameId;
+    }
+
+    /**
+     * End of the start tag, if this is {@link XMLStreamConstants#START_ELEMENT}.
+     * This is past {@link #end()} for an empty element.
+     */
+    int tagEnd() {
+        return tagEnd;
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Moves on to the next token.
+     *
+     * @return
+     *      false at the end of the document, or where it stops being well-formed.
+     */
+    boolean next() throws IOException {
+        if (emptyEnd>=0) {
+            kind = XMLStreamConstants.END_ELEMENT;
+            end = emptyEnd;
+            emptyEnd = -1;
+            pop();
+            return true;
+        }
+        if (kind==-1)
+            return startDocument();
+
+        compact();
+        nameId = -1;
+        int i = pos;
+        int c = at(i);
+        if (c<0)
+            return false;
+        start = base+i;
+
+        if (c!='<') {
+            boolean space = true;
+            for (; (c=at(i))>=0 && c!='<'; i++)
+                space &= isSpace(c);
+            return token(depth==0 && space ? XMLStreamConstants.SPACE : XMLStreamConstants.CHARACTERS, i);
+        }
+
+        c = at(i+1);
+        if (c=='/')
+            return endTag(i+2);
+        if (c=='?')
+            return token(XMLStreamConstants.PROCESSING_INSTRUCTION, find(i+2, "?>"));
+        if (c=='!') {
+            if (startsWith(i+2, "--"))
+                return token(XMLStreamConstants.COMMENT, find(i+4, "-->"));
+            if (startsWith(i+2, "[CDATA["))
+                return token(XMLStreamConstants.CDATA, find(i+9, "]]>"));
+            if (startsWith(i+2, "DOCTYPE"))
+                return token(XMLStreamConstants.DTD, doctypeEnd(i+9));
+            return false;
+        }
+        return startTag(i+1);
+    }
+
+    /**
+     * The document starts with the XML declaration, if any.
+     */
+    private boolean startDocument() throws IOException {
+        kind = XMLStreamConstants.START_DOCUMENT;
+        int e = 0;
+        if (startsWith(0, "<?xml") && isSpace(at(5))) {
+            e = find(5, "?>");
+            if (e<0)
+                return false;
+        }
+        start = 0;
+        end = pos = e;
+        return true;
+    }
+
+    private boolean token(int kind, int e) {
+        if (e<0)
+            return false;
+        this.kind = kind;
+        end = base+e;
+        pos = e;
+        return true;
+    }
+
+    /**
+     * @param i
+     *      Position of the element name.
+     */
+    private boolean startTag(int i) throws IOException {
+        int n = i;
+        int c;
+        while ((c=at(i))>=0 && c!='>' && c!='/' && !isSpace(c))
+            i++;
+        if (i==n)
+            return false;
+        Name name = name(n, i);
+
+        int scope = bindings;
+        boolean empty = false;
+        while (true) {
+            while ((c=at(i))>=0 && isSpace(c))
+                i++;
+            if (c=='>') {
+                i++;
+                break;
+            }
+            if (c=='/') {
+                if (at(i+1)!='>')
+                    return false;
+                i += 2;
+                empty = true;
+                break;
+            }
+            if (c<0)
+                return false;
+
+            // attribute
+            int an = i;
+            while ((c=at(i))>=0 && c!='=' && c!='>' && c!='/' && !isSpace(c))
+                i++;
+            int ae = i;
+            while ((c=at(i))>=0 && isSpace(c))
+                i++;
+            if (c!='=')
+                return false;
+            i++;
+            while ((c=at(i))>=0 && isSpace(c))
+                i++;
+            if (c!='"' && c!='\'')
+                return false;
+            int vs = ++i;
+            int q;
+            while ((q=at(i))>=0 && q!=c)
+                i++;
+            if (q<0)
+                return false;
+            int ve = i++;
+
+            if (matches(an, ae, "xmlns"))
+                bind("", new String(buf, vs, ve-vs));
+            else if (ae-an>6 && matches(an, an+6, "xmlns:"))
+                bind(new String(buf, an+6, ae-an-6), new String(buf, vs, ve-vs));
+        }
+
+        String uri = resolve(name.prefix);
+        if (uri==null)
+            return false;   // unbound prefix
+        if (name.id<0 || !name.uri.equals(uri)) {
+            name.uri = uri;
+            name.id = names.intern(new QName(uri, name.local, name.prefix));
+        }
+
+        push(name, name.id, scope);
+        kind = XMLStreamConstants.START_ELEMENT;
+        nameId = name.id;
+        tagEnd = base+i;
+        pos = i;
+        if (empty) {
+            end = start;
+            emptyEnd = tagEnd;
+        } else {
+            end = tagEnd;
+        }
+        return true;
+    }
+
+    /**
+     * @param i
+     *      Position of the element name.
+     */
+    private boolean endTag(int i) throws IOException {
+        if (depth==0)
+            return false;
+        String qname = open[depth-1].raw;
+        if (!startsWith(i, qname))
+            return false;
+        i += qname.length();
+        int c;
+        while ((c=at(i))>=0 && isSpace(c))
+            i++;
+        if (c!='>')
+            return false;
+        kind = XMLStreamConstants.END_ELEMENT;
+        nameId = ids[depth-1];
+        end = base+i+1;
+        pos = i+1;
+        pop();
+        return true;
+    }
+
+    /**
+     * Looks up the element name in buf[start,end), adding it if it's new.
+     */
+    private Name name(int start, int end) {
+        int h = 0;
+        for (int i=start; i<end; i++)
+            h = h*31+buf[i];
+        for (Name n=table[h&(table.length-1)]; n!=null; n=n.next)
+            if (n.hash==h && matches(start, end, n.raw))
+                return n;
+
+        if (tableSize*2>table.length) {
+            Name[] old = table;
+            table = new Name[old.length*2];
+            for (Name n : old) {
+                while (n!=null) {
+                    Name next = n.next;
+                    link(n);
+                    n = next;
+                }
+            }
+        }
+        Name n = new Name(new String(buf, start, end-start), h);
+        link(n);
+        tableSize++;
+        return n;
+    }
+
+    private void link(Name n) {
+        int i = n.hash&(table.length-1);
+        n.next = table[i];
+        table[i] = n;
+    }
+
+    private void push(Name name, int id, int scope) {
+        if (depth==open.length) {
+            Name[] a = new Name[depth*2];
+            System.arraycopy(open, 0, a, 0, depth);
+            open = a;
+            ids = grow(ids);
+            scopes = grow(scopes);
+        }
+        open[depth] = name;
+        ids[depth] = id;
+        scopes[depth] = scope;
+        depth++;
+    }
+
+    private void pop() {
+        depth--;
+        bindings = scopes[depth];
+        open[depth] = null;
+    }
+
+    private void bind(String prefix, String uri) {
+        if (bindings==prefixes.length) {
+            prefixes = grow(prefixes);
+            uris = grow(uris);
+        }
+        prefixes[bindings] = prefix;
+        uris[bindings] = uri;
+        bindings++;
+    }
+
+    /**
+     * @return
+     *      null if the prefix isn't bound.
+     */
+    private String resolve(String prefix) {
+        for (int i=bindings-1; i>=0; i--)
+            if (prefixes[i].equals(prefix))
+                return uris[i];
+        if (prefix.length()==0)
+            return XMLConstants.NULL_NS_URI;
+        if (prefix.equals(XMLConstants.XML_NS_PREFIX))
+            return XMLConstants.XML_NS_URI;
+        return null;
+    }
+
+    /**
+     * Finds the position after the given string.
+     *
+     * @return
+     *      -1 if not found.
+     */
+    private int find(int i, String s) throws IOException {
+        char first = s.charAt(0);
+        for (;; i++) {
+            int c = at(i);
+            if (c<0)
+                return -1;
+            if (c==first && startsWith(i, s))
+                return i+s.length();
+        }
+    }
+
+    /**
+     * Finds the end of the document type declaration, which may have an internal subset in brackets.
+     * Comments and processing instructions in the internal subset are skipped, as they may have quotes
+     * and brackets of their own.
+     */
+    private int doctypeEnd(int i) throws IOException {
+        char quote = 0;
+        int brackets = 0;
+        for (;; i++) {
+            int c = at(i);
+            if (c<0)
+                return -1;
+            if (quote!=0) {
+                if (c==quote)   quote = 0;
+            } else if (c=='<' && startsWith(i, "<!--")) {
+                i = find(i+4, "-->");
+                if (i<0)
+                    return -1;
+                i--;
+            } else if (c=='<' && startsWith(i, "<?")) {
+                i = find(i+2, "?>");
+                if (i<0)
+                    return -1;
+                i--;
+            } else if (c=='"' || c=='\'') {
+                quote = (char)c;
+            } else if (c=='[') {
+                brackets++;
+            } else if (c==']') {
+                brackets--;
+            } else if (c=='>' && brackets==0) {
+                return i+1;
+            }
+        }
+    }
+
+    private boolean startsWith(int i, String s) throws IOException {
+        for (int k=0; k<s.length(); k++)
+            if (at(i+k)!=s.charAt(k))
+                return false;
+        return true;
+    }
+
+    /**
+     * Checks if buf[start,end) is the given string. The range has already been read.
+     */
+    private boolean matches(int start, int end, String s) {
+        if (end-start!=s.length())
+            return false;
+        for (int k=0; k<s.length(); k++)
+            if (buf[start+k]!=s.charAt(k))
+                return false;
+        return true;
+    }
+
+    /**
+     * Gets the character at the given index of {@link #buf}, reading more of the document as needed.
+     *
+     * @return
+     *      -1 at the end of the document.
+     */
+    private int at(int i) throws IOException {
+        while (i>=limit) {
+            if (eof)
+                return -1;
+            if (limit==buf.length) {
+                char[] b = new char[buf.length*2];
+                System.arraycopy(buf, 0, b, 0, limit);
+                buf = b;
+            }
+            int n = in.read(buf, limit, buf.length-limit);
+            if (n<0)
+                eof = true;
+            else
+                limit += n;
+        }
+        return buf[i];
+    }
+
+    /**
+     * Drops the tokens that are already reported from {@link #buf}, so that it doesn't grow with the document.
+     * Indices into {@link #buf} are only stable within a token.
+     */
+    private void compact() {
+        if (pos>buf.length/2) {
+            System.arraycopy(buf, pos, buf, 0, limit-pos);
+            limit -= pos;
+            base += pos;
+            pos = 0;
+        }
+    }
+
+    private static boolean isSpace(int c) {
+        return c==' ' || c=='\t' || c=='\n' || c=='\r';
+    }
+
+    private static String[] grow(String[] a) {
+        String[] b = new String[a.length*2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length*2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+}
@@ -0,0 +1,225 @@
+package org.kohsuke.maven.rewrite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders edits as a unified diff, the format that <tt>diff -u</tt> and <tt>git diff</tt> produce,
+ * and <tt>patch</tt> and <tt>git apply</tt> read.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see XmlPatcher#getDiff(String)
+ */
+public final class UnifiedDiff {
+    private final CharSequence original;
+
+    /**
+     * Start offsets of the lines in {@link #original}, followed by its length.
+     */
+    private final int[] lines;
+    private final int lineCount;
+
+    private UnifiedDiff(CharSequence original) {
+        this.original = original;
+        int n = 0;
+        int[] a = new int[64];
+        for (int i=0; i<original.length(); i++) {
+            if (i==0 || original.charAt(i-1)=='\n') {
+                if (n==a.length) {
+                    int[] b = new int[n*2];
+                    System.arraycopy(a,0,b,0,n);
+                    a = b;
+                }
+                a[n++] = i;
+            }
+        }
+        lines = new int[n+1];
+        System.arraycopy(a,0,lines,0,n);
+        lines[n] = original.length();
+        lineCount = n;
+    }
+
+    /**
+     * Changed lines: [oldStart,oldEnd) of the original are replaced by the given lines.
+     */
+    private static final class Block {
+        final int oldStart, oldEnd;
+        final List<String> added;
+
+        Block(int oldStart, int oldEnd, List<String> added) {
+            this.oldStart = oldStart;
+            this.oldEnd = oldEnd;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Renders the diff with 3 lines of context.
+     *
+     * @see #format(CharSequence, List, String, String, int)
+     */
+    public static String format(CharSequence original, List<Edit> edits, String oldName, String newName) {
+        return format(original, edits, oldName, newName, 3);
+    }
+
+    /**
+     * Renders the diff.
+     *
+     * @param original
+     *      The document before the edits.
+     * @param edits
+     *      Non-overlapping edits sorted by their positions, whose offsets refer to the original.
+     * @param context
+     *      Number of unchanged lines to show around the changes.
+     * @return
+     *      Empty if the edits don't change anything.
+     */
+    public static String format(CharSequence original, List<Edit> edits, String oldName, String newName, int context) {
+        UnifiedDiff d = new UnifiedDiff(original);
+        List<Block> blocks = d.blocks(edits);
+        if (blocks.isEmpty())
+            return "";
+
+        StringBuilder out = new StringBuilder();
+        out.append("--- ").append(oldName).append('\n');
+        out.append("+++ ").append(newName).append('\n');
+
+        int delta = 0;  // how many lines the blocks before the current hunk added
+        for (int i=0; i<blocks.size(); ) {
+            // blocks whose contexts overlap go into the same hunk
+            int j = i+1;
+            while (j<blocks.size() && blocks.get(j).oldStart-blocks.get(j-1).oldEnd <= context*2)
+                j++;
+
+            int from = Math.max(0, blocks.get(i).oldStart-context);
+            int to = Math.min(d.lineCount, blocks.get(j-1).oldEnd+context);
+            int added = 0;
+            for (int k=i; k<j; k++)
+                added += blocks.get(k).added.size()-(blocks.get(k).oldEnd-blocks.get(k).oldStart);
+
+            int oldCount = to-from;
+            int newCount = oldCount+added;
+            out.append("@@ -").append(range(from, oldCount))
+               .append(" +").append(range(from+delta, newCount)).append(" @@\n");
+
+            int line = from;
+            for (int k=i; k<j; k++) {
+                Block b = blocks.get(k);
+                for (; line<b.oldStart; line++)
+                    d.appendLine(out, ' ', line);
+                for (; line<b.oldEnd; line++)
+                    d.appendLine(out, '-', line);
+                for (String s : b.added)
+                    appendLine(out, '+', s);
+            }
+            for (; line<to; line++)
+                d.appendLine(out, ' ', line);
+
+            delta += added;
+            i = j;
+        }
+        return out.toString();
+    }
+
+    private static String range(int start, int count) {
+        if (count==1)
+            return String.valueOf(start+1);
+        // an empty range is denoted by the line before it
+        return (count==0 ? start : start+1)+","+count;
+    }
+
+    private void appendLine(StringBuilder out, char prefix, int line) {
+        appendLine(out, prefix, original.subSequence(lines[line], lines[line+1]).toString());
+    }
+
+    private static void appendLine(StringBuilder out, char prefix, String line) {
+        out.append(prefix).append(line);
+        if (!line.endsWith("\n"))
+            out.append("\n\\ No newline at end of file\n");
+    }
+
+    /**
+     * Turns edits into changed lines.
+     */
+    private List<Block> blocks(List<Edit> edits) {
+        List<Block> r = new ArrayList<Block>();
+        for (int i=0; i<edits.size(); ) {
+            // edits that touch the same lines have to be rendered together
+            Edit e = edits.get(i);
+            int a = lineOf(e.getStart());
+            int b = lineEnd(e);
+            int j = i+1;
+            while (j<edits.size() && lineOf(edits.get(j).getStart())<b) {
+                b = Math.max(b, lineEnd(edits.get(j)));
+                j++;
+            }
+
+            // apply the edits to the lines
+            StringBuilder buf = new StringBuilder();
+            int pos = lines[a];
+            for (int k=i; k<j; k++) {
+                Edit x = edits.get(k);
+                buf.append(original, pos, x.getStart()).append(x.getReplacement());
+                pos = x.getEnd();
+            }
+            buf.append(original, pos, lines[b]);
+
+            // only report the lines that actually changed
+            List<String> added = split(buf);
+            int s = a, e2 = b;
+            while (s<e2 && !added.isEmpty() && added.get(0).equals(text(s))) {
+                added.remove(0);
+                s++;
+            }
+            while (s<e2 && !added.isEmpty() && added.get(added.size()-1).equals(text(e2-1))) {
+                added.remove(added.size()-1);
+                e2--;
+            }
+            if (s<e2 || !added.isEmpty())
+                r.add(new Block(s, e2, added));
+            i = j;
+        }
+        return r;
+    }
+
+    /**
+     * Line that contains the given offset.
+     */
+    private int lineOf(int offset) {
+        int lo = 0, hi = lineCount;  // lines[lo]<=offset<lines[hi], or lo==lineCount at the end of the document
+        while (hi-lo>1) {
+            int mid = (lo+hi)>>>1;
+            if (lines[mid]<=offset) lo = mid;
+            else                    hi = mid;
+        }
+        if (lineCount>0 && offset>=lines[lineCount] && original.charAt(offset-1)=='\n')
+            return lineCount;   // past the newline of the last line
+        return lo;
+    }
+
+    /**
+     * The line after the last line that the edit touches.
+     */
+    private int lineEnd(Edit e) {
+        int last = lineOf(Math.max(e.getStart(), e.getEnd()-1));
+        return Math.min(last+1, lineCount);
+    }
+
+    private String text(int line) {
+        return original.subSequence(lines[line], lines[line+1]).toString();
+    }
+
+    private static List<String> split(CharSequence s) {
+        List<String> r = new ArrayList<String>();
+        int start = 0;
+        for (int i=0; i<s.length(); i++) {
+            if (s.charAt(i)=='\n') {
+                r.add(s.subSequence(start, i+1).toString());
+                start = i+1;
+            }
+        }
+        if (start<s.length())
+            r.add(s.subSequence(start, s.length()).toString());
+        return r;
+    }
+}
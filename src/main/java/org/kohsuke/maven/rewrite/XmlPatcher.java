@@ -20,24 +20,37 @@ package org.kohsuke.maven.rewrite;
 
 import com.ctc.wstx.stax.WstxInputFactory;
 import org.apache.commons.io.IOUtils;
-import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.WriterFactory;
 import org.codehaus.plexus.util.xml.XmlStreamReader;
 import org.codehaus.stax2.XMLInputFactory2;
+import org.kohsuke.maven.rewrite.PatcherMetrics.Callback;
+import org.kohsuke.maven.rewrite.XmlVisitor.Flow;
 
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.XMLEvent;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.Writer;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * High-fidelity XML patch editor.
@@ -61,6 +74,7 @@ import java.util.Set;
  * While this class intends to provide high-fidelity and preserves as much of the original XML as possible,
  * the StAX API (JSR-173) has inherent limitation. For example, the StAX API specifies that <code>CR</code>
  * characters will be stripped.  Current implementations do not keep &quot; and &apos; characters consistent.
+ * {@link #setNativeTokenizer(boolean)} reads the document without StAX, to avoid these.
  *
  * @author Stephen Connolly
  * @author Kohsuke Kawaguchi
@@ -70,23 +84,85 @@ public class XmlPatcher implements XMLEventReader {
     /**
      * XML being edited.
      */
-    /*package*/ final StringBuilder xml;
+    /*package*/ final DocumentBuffer xml;
+
+    /**
+     * Same as {@link #xml} if we are streaming, or null otherwise.
+     */
+    private final StreamingBuffer stream;
 
     private boolean modified = false;
 
+    private boolean journaled = false;
+
+    /**
+     * Edits recorded during the current journaled scan, or null if edits are applied as they are made.
+     */
+    private List<Edit> journal;
+
+    /**
+     * Edits applied at the end of the last journaled scan.
+     */
+    private List<Edit> edits = Collections.emptyList();
+
     private XMLInputFactory factory;
 
-    /*package*/ final Set<Mark> marks = new HashSet<Mark>();
+    /**
+     * File that {@link #xml} refers to via memory mapping, if any.
+     */
+    private File mapped;
+
+    /**
+     * File this patcher was created from, which {@link #save()} writes back to, and what we know about it.
+     */
+    private File source;
+    private String sourceEncoding;
+    private boolean sourceBom;
+
+    private long sourceLength, sourceModified;
+
+    private ResultCache cache;
+
+    /**
+     * Checkpoints that can still be rolled back to, oldest first.
+     */
+    private final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+
+    /**
+     * Edits that undo the edits made since the oldest of {@link #checkpoints}, in the order they are made,
+     * or null if there's no checkpoint.
+     */
+    private List<Edit> undo;
+
+    /**
+     * Changes made by the current scan, when its result is going to the {@link #cache}.
+     */
+    private EditLog recording;
+
+    /**
+     * Changes made since the document was loaded or saved, in the coordinates of {@link #original}.
+     */
+    private EditLog changes = new EditLog();
+
+    /**
+     * {@linkplain DocumentBuffer#snapshot() Snapshot} of the document as of when it was loaded or saved.
+     * Only taken when the first change is made, which costs nothing for {@link PieceTableBuffer}.
+     */
+    private DocumentBuffer original;
+
+    private PatcherMetrics metrics;
+
+    /*package*/ final MarkIndex marks = new MarkIndex();
 
     /**
      * Position of the last {@link XMLEvent}
      */
-    private final Mark lastPos = new Mark(this);
+    private final Mark lastPos = new Mark(this,false);
 
     /**
      * Position of the upcoming {@link XMLEvent} that we've peaked
      */
-    private final Mark nextPos = new Mark(this);
+    private final Mark nextPos = new Mark(this,false);
 
     /**
      * How far does {@link #xml} diverged from the current reading head of {@link #backing}?
@@ -97,23 +173,123 @@ public class XmlPatcher implements XMLEventReader {
 
     private XMLEventReader backing;
 
+    /**
+     * Parser that {@link #scan(XmlVisitor)} reads the document with, unless {@link #eventReaderView} is on.
+     */
+    private XMLStreamReader cursor;
+
+    private boolean eventReaderView;
+
+    /**
+     * Reads the document instead of {@link #cursor}, if {@link #nativeTokenizer} is on.
+     */
+    private Tokenizer tokenizer;
+
+    private boolean nativeTokenizer;
+
+    /**
+     * Size of the contents of an element, in characters, from which {@link #fastForward()} starts a new parser
+     * instead of letting the current one go through them.
+     */
+    private static final int FAST_FORWARD_THRESHOLD = 4096;
+
     private XmlPath path;
 
+    /**
+     * Element names seen so far.
+     */
+    private final NameTable names = new NameTable();
+
+    private boolean indexed;
+
+    /**
+     * Events of the document as of when {@link #log} was last cleared, or null if we need to parse the document.
+     */
+    /*package*/ EventIndex index;
+
+    /**
+     * Edits made since {@link #index} was built, in its coordinates.
+     */
+    private final EditLog log = new EditLog();
+
+    /**
+     * Index that the current scan is building as it parses the document, or null.
+     */
+    private EventIndex building;
+
 
 // --------------------------- CONSTRUCTORS ---------------------------
 
-    public XmlPatcher(StringBuilder xml) {
+    public XmlPatcher(DocumentBuffer xml) {
         this.xml = xml;
+        this.stream = xml instanceof StreamingBuffer ? (StreamingBuffer)xml : null;
+        // the owner of the StringBuilder can change it without us knowing
+        this.indexed = !(xml instanceof StringBuilderBuffer);
+    }
+
+    /**
+     * Edits the given {@link StringBuilder} in place.
+     */
+    public XmlPatcher(StringBuilder xml) {
+        this(new StringBuilderBuffer(xml));
     }
 
+    /**
+     * Edits the given file, which is read into memory.
+     */
     public XmlPatcher(File f) throws IOException {
-        this(new FileInputStream(f));
+        this(f, false);
+    }
+
+    /**
+     * Edits the given file, optionally by reading it through a memory mapping.
+     *
+     * <p>
+     * When the file is in ASCII, ISO-8859-1, or UTF-8 that's mostly ASCII characters, and {@code map} is true,
+     * the file is memory-mapped and parsed from the mapping, one byte per character, and only non-ASCII characters
+     * are decoded into the heap. When the document is written in the same encoding, the parts that aren't edited
+     * are copied from the mapping byte for byte. Otherwise the file is decoded into memory.
+     *
+     * <p>
+     * The document keeps reading from the file for as long as the patcher is alive, so the file must not be
+     * changed by anyone else in the mean time, including other patchers on the same file: a document whose file
+     * is rewritten or truncated underneath sees the new text, or fails with {@link InternalError}.
+     * {@link #save()} never writes over a mapped file, and instead replaces it with a new file. On Windows,
+     * a mapped file can be neither replaced nor truncated until the mapping is garbage collected.
+     */
+    public XmlPatcher(File f, boolean map) throws IOException {
+        this(f, map ? MappedText.open(f) : null);
+    }
+
+    private XmlPatcher(File f, PieceTableBuffer t) throws IOException {
+        this(t!=null ? t : read(new FileInputStream(f)));
+        if (t!=null)
+            this.mapped = f;
+        this.source = f;
+        this.sourceEncoding = MappedText.detectEncoding(f);
+        this.sourceBom = MappedText.hasBom(f);
+        this.sourceLength = f.length();
+        this.sourceModified = f.lastModified();
     }
 
     public XmlPatcher(InputStream in) throws IOException {
+        this(read(in));
+    }
+
+    /**
+     * Patches a document as it's read from the input, and writes the result to the output as the scan progresses.
+     * Both streams are closed by the scan. If the scan fails, the output is left truncated.
+     *
+     * @see StreamingBuffer
+     */
+    public XmlPatcher(InputStream in, OutputStream out) throws IOException {
+        this(new StreamingBuffer(new XmlStreamReader(in), WriterFactory.newXmlWriter(out)));
+    }
+
+    private static DocumentBuffer read(InputStream in) throws IOException {
         XmlStreamReader r = new XmlStreamReader(in);
         try {
-            this.xml = new StringBuilder(IOUtils.toString(r));
+            return new PieceTableBuffer(IOUtils.toString(r));
         } finally {
             r.close();
         }
@@ -125,10 +301,218 @@ public class XmlPatcher implements XMLEventReader {
         return xif;
     }
 
+    private static final class DefaultFactoryHolder {
+        static final XMLInputFactory2 INSTANCE = createDefaultXMLInputFactory();
+    }
+
+    /**
+     * Gets the factory that's used by all the patchers unless {@link #setFactory(XMLInputFactory)} is called.
+     *
+     * <p>
+     * This factory is created once per process. Creating parsers from it is thread-safe, and parsers share
+     * the symbol table of the factory, so element and attribute names seen by one scan are already known
+     * to the next, and a small document doesn't pay for warming up a new factory. For the same reason,
+     * don't change the properties of this factory; set up your own if you need a different configuration.
+     */
+    public static XMLInputFactory2 getDefaultFactory() {
+        return DefaultFactoryHolder.INSTANCE;
+    }
+
     public void setFactory(XMLInputFactory factory) {
         this.factory = factory;
     }
 
+    /**
+     * Registers the listener that receives the measurements of scans, or null to stop measuring.
+     */
+    public void setMetrics(PatcherMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the cache that scans with visitors that have a {@linkplain XmlVisitor#getFingerprint() fingerprint}
+     * reuse the edits from, instead of parsing the document. Results of such scans are stored in it.
+     * Documents that are patched as they stream through aren't cached.
+     */
+    public void setResultCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    public ResultCache getResultCache() {
+        return cache;
+    }
+
+    public PatcherMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Switches the reuse of the document structure between scans on/off. On by default, except for
+     * a document in a {@link StringBuilder}, which its owner may change directly.
+     *
+     * <p>
+     * When on, the first scan remembers the kinds and the positions of the events in the document, and
+     * subsequent scans replay them instead of parsing the document again. Edits are tracked, and only the
+     * contents of the elements that enclose them are parsed again. Visitors see the same thing either way.
+     * Scans are not replayed while {@link #setEventReaderView(boolean)} is on.
+     *
+     * <p>
+     * For this to work, the document must be only changed through this patcher. Changes made behind its back
+     * are only noticed if they change the length of the document.
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Switches whether {@link #scan(XmlVisitor)} reads the document through the {@link XMLEventReader} view
+     * of this class. Off by default.
+     *
+     * <p>
+     * By default, scans read the document with the {@link XMLStreamReader} cursor, which doesn't create
+     * an {@link XMLEvent} for every token. The flip side is that the {@link XMLEventReader} methods of this class,
+     * such as {@link #peek()} and {@link #getElementText()}, aren't available to visitors, and
+     * {@link XmlPath#getTag()} parses the start tag again when it's asked for. Turn this on if visitors need them.
+     */
+    public void setEventReaderView(boolean eventReaderView) {
+        this.eventReaderView = eventReaderView;
+    }
+
+    public boolean isEventReaderView() {
+        return eventReaderView;
+    }
+
+    /**
+     * Switches whether {@link #scan(XmlVisitor)} reads the document with a tokenizer of its own instead of StAX.
+     * Off by default, and {@link #setEventReaderView(boolean)} takes precedence.
+     *
+     * <p>
+     * The tokenizer reports exactly where each token starts and ends, while StAX parsers only tell where
+     * a token starts, so the cursor works out the rest from the text. With the tokenizer, <code>CR</code>
+     * characters and the whitespace around tokens end up where they are in the document, and the scan does less work.
+     * The tokenizer doesn't validate the document beyond matching tags and namespace prefixes, and
+     * like the cursor, it ends the scan where the document stops being well-formed. Entities declared in
+     * the document type declaration aren't expanded, so elements that come from an entity aren't visited,
+     * unlike with StAX.
+     */
+    public void setNativeTokenizer(boolean nativeTokenizer) {
+        this.nativeTokenizer = nativeTokenizer;
+    }
+
+    public boolean isNativeTokenizer() {
+        return nativeTokenizer;
+    }
+
+    /**
+     * Switches the journaled mode on/off.
+     *
+     * <p>
+     * In the journaled mode, edits made during {@link #scan(XmlVisitor)} are only recorded, and they are
+     * applied to the document all at once when the scan completes. This avoids moving the rest of the document
+     * and all the marks for every edit, which makes a big difference for a scan that makes lots of edits.
+     *
+     * <p>
+     * The catch is that the document doesn't change during the scan: {@link Mark}s keep pointing to
+     * the original text, {@link Mark#verbatim()} returns the text before the edit, and edits may not overlap
+     * with each other. If the scan fails, none of the edits are applied.
+     */
+    public void setJournaled(boolean journaled) {
+        this.journaled = journaled;
+    }
+
+    public boolean isJournaled() {
+        return journaled;
+    }
+
+    /**
+     * Edits applied by the last journaled scan, sorted by their positions.
+     *
+     * @return
+     *      Offsets of these edits refer to the document before the scan. Never null.
+     */
+    public List<Edit> getEdits() {
+        return edits;
+    }
+
+    /**
+     * Changes made to the document since it was loaded or last {@linkplain #save() saved}, sorted by their positions.
+     * Changes that touch each other are merged into one.
+     *
+     * <p>
+     * Changes aren't tracked for a document that's patched as it streams through.
+     *
+     * @return
+     *      Offsets of these edits refer to the document as it was loaded or saved.
+     */
+    public List<Edit> getChanges() {
+        return toEdits(changes);
+    }
+
+    /**
+     * Turns the entries of the log into edits, taking replacement texts from the document.
+     */
+    private List<Edit> toEdits(EditLog l) {
+        List<Edit> r = new ArrayList<Edit>(l.size());
+        int d = 0;
+        for (int i=0; i<l.size(); i++) {
+            int s = l.start(i);
+            r.add(new Edit(s, l.end(i), xml.substring(s+d, s+d+l.length(i))));
+            d += l.delta(i);
+        }
+        return r;
+    }
+
+    /**
+     * Renders {@link #getChanges()} as a unified diff.
+     *
+     * @param name
+     *      Path of the document, which appears in the header as "a/name" and "b/name".
+     * @return
+     *      Empty if nothing has changed.
+     */
+    public String getDiff(String name) {
+        if (changes.isEmpty())
+            return "";
+        return UnifiedDiff.format(original.toString(), getChanges(), "a/"+name, "b/"+name);
+    }
+
+    private void recordChange(int start, int end, int length) {
+        if (stream!=null)
+            return;
+        if (recording!=null)
+            recording.record(start, end, length);
+        if (original==null)
+            original = xml.snapshot();
+        changes.record(start, end, length);
+    }
+
+    /**
+     * Takes a read-only copy of the document as it is now. The copy can be read and scanned from other threads
+     * while this patcher keeps editing the document, and visitors that try to edit it fail with
+     * {@link UnsupportedOperationException}.
+     *
+     * <p>
+     * Documents in {@link PieceTableBuffer}, which include files, are copied in constant time and memory,
+     * as the copy shares the text with this document. Other buffers are copied in full, but snapshots taken
+     * without edits in between share the same copy. Snapshots of a snapshot always take constant time.
+     *
+     * <p>
+     * Like any other patcher, a snapshot keeps the state of the scan in progress, so it can't be scanned
+     * by two threads at once. Each thread needs to take its own snapshot, for example by calling this method
+     * on a snapshot that the threads share, which is safe to do from any thread.
+     *
+     * @see DocumentBuffer#snapshot()
+     */
+    public XmlPatcher snapshot() {
+        XmlPatcher p = new XmlPatcher(xml.snapshot());
+        p.factory = factory;
+        return p;
+    }
+
     /**
      * Rewind to the start so we can run through again.
      *
@@ -136,9 +520,38 @@ public class XmlPatcher implements XMLEventReader {
      */
     public void rewind()
             throws XMLStreamException {
-        if (factory == null)
-            factory = createDefaultXMLInputFactory();
-        backing = factory.createXMLEventReader(new StringReader(xml.toString()));
+        reset();
+        backing = getFactory().createXMLEventReader(xml.openReader());
+    }
+
+    /**
+     * Rewinds to the start, to read the document with {@link #cursor}.
+     */
+    private void open() throws XMLStreamException {
+        reset();
+        if (nativeTokenizer)
+            tokenizer = new Tokenizer(xml.openReader(), names);
+        else
+            cursor = getFactory().createXMLStreamReader(xml.openReader());
+    }
+
+    private void reset() throws XMLStreamException {
+        if (backing!=null) {
+            backing.close();    // lets the parser recycle its buffers for the next one
+            backing = null;
+        }
+        if (cursor!=null) {
+            cursor.close();
+            cursor = null;
+        }
+        if (tokenizer!=null) {
+            try {
+                tokenizer.close();
+            } catch (IOException e) {
+                throw new XMLStreamException(e);
+            }
+            tokenizer = null;
+        }
         marks.clear();
         cumulativeDelta = 0;
         nextPos.set(0, 0);
@@ -146,6 +559,18 @@ public class XmlPatcher implements XMLEventReader {
         next = null;
     }
 
+    private XMLInputFactory getFactory() {
+        if (factory == null)
+            factory = getDefaultFactory();
+        return factory;
+    }
+
+    private XMLEventReader backing() {
+        if (backing==null)
+            throw new IllegalStateException("The document is not being read through an event reader. See setEventReaderView()");
+        return backing;
+    }
+
 
     /**
      * Gets the current location in the XML document.
@@ -154,33 +579,694 @@ public class XmlPatcher implements XMLEventReader {
         return path;
     }
 
+    /**
+     * Runs multiple visitors in one pass over the document.
+     *
+     * @see CompositeVisitor
+     */
+    public boolean scan(XmlVisitor... visitors) throws XMLStreamException {
+        return scan(visitors.length==1 ? visitors[0] : new CompositeVisitor(visitors));
+    }
+
     public boolean scan(XmlVisitor v) throws XMLStreamException {
         if (this.path!=null)
             throw new IllegalStateException("XmlScanner is not re-entrant");
         this.path = null;
-        rewind();
+
+        long start = 0;
+        if (metrics!=null) {
+            start = System.nanoTime();
+            metrics.scanStarted(this);
+        }
 
         try {
-            rewind();
-            v.startDocument(this);
+            if (journaled && stream!=null)
+                throw new IllegalStateException("Streaming document cannot be scanned in the journaled mode");
+
+            if (stream==null && cannotMatch(v, new HashMap<String,Boolean>())) {
+                if (journaled)
+                    edits = Collections.emptyList();
+                return isModified();
+            }
+
+            String key = null;
+            if (cache!=null && stream==null) {
+                String fingerprint = v.getFingerprint();
+                if (fingerprint!=null) {
+                    key = cache.key(fingerprint, xml);
+                    List<Edit> cached = cache.get(key);
+                    if (cached!=null) {
+                        applyEdits(cached);
+                        if (journaled)
+                            edits = Collections.unmodifiableList(cached);
+                        return isModified();
+                    }
+                    recording = new EditLog();
+                }
+            }
+
+            EventIndex replay = prepareIndex();
+            int length = xml.length();
+            if (replay==null) {
+                if (eventReaderView)
+                    rewind();
+                else
+                    open();
+                if (indexed && stream==null)
+                    building = new EventIndex();
+            } else {
+                reset();
+            }
+            if (journaled)
+                journal = new ArrayList<Edit>();
+
+            if (metrics==null)
+                v.startDocument(this);
+            else
+                call(v, Callback.START_DOCUMENT);
+
+            if (v.takeFlow()==Flow.STOP)
+                building = null;
+            else if (replay!=null)
+                replay(v, replay);
+            else if (eventReaderView)
+                parseEvents(v);
+            else if (tokenizer!=null)
+                tokenize(v);
+            else
+                parse(v);
+
+            if (building!=null) {
+                index = building.finish(length) ? building : null;
+                building = null;
+            }
+            if (journal!=null)
+                applyJournal();
+            if (stream!=null)
+                stream.finish();
+            if (key!=null)
+                cache.put(key, toEdits(recording));
+            return isModified();
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        } finally {
+            for (XmlPath p=path; p!=null; p=p.getParent())
+                p.release();    // elements left open by a visitor that stopped the scan
+            this.path = null;
+            if (stream!=null)
+                stream.close();
+            if (journal!=null) {
+                // checkpoints taken in this scan can't be used anymore
+                for (int i=0; i<checkpoints.size(); i++) {
+                    if (checkpoints.get(i).journal==journal) {
+                        release(i);
+                        break;
+                    }
+                }
+            }
+            this.journal = null;
+            this.recording = null;
+            if (building!=null) {
+                // the scan failed
+                building = null;
+                index = null;
+            }
+            if (index==null)
+                log.clear();
+            if (metrics!=null)
+                metrics.scanCompleted(this, System.nanoTime()-start, marks.peak());
+        }
+    }
+
+    /**
+     * Checks if the document lacks some of the strings that the visitor requires.
+     *
+     * @param found
+     *      Strings that are already looked for, so that we don't look for the same string twice.
+     * @see XmlVisitor#getRequiredLiterals()
+     */
+    private boolean cannotMatch(XmlVisitor v, Map<String,Boolean> found) {
+        if (v instanceof CompositeVisitor) {
+            for (XmlVisitor c : ((CompositeVisitor)v).getVisitors())
+                if (!cannotMatch(c, found))
+                    return false;
+            return true;
+        }
+
+        Collection<String> literals = v.getRequiredLiterals();
+        if (literals==null)
+            return false;
+        for (String s : literals) {
+            Boolean b = found.get(s);
+            if (b==null)
+                found.put(s, b = xml.indexOf(s)>=0);
+            if (!b)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Brings the index up to date with the edits made since it was built.
+     *
+     * @return
+     *      null if the document needs to be parsed.
+     */
+    private EventIndex prepareIndex() {
+        if (!indexed || eventReaderView || stream!=null || index==null || index.length()+log.delta()!=xml.length()) {
+            index = null;
+        } else if (!log.isEmpty()) {
+            index = index.rebuild(log, xml, names, getFactory());
+        }
+        log.clear();
+        return index;
+    }
+
+    /**
+     * Parses the document with {@link #cursor}.
+     *
+     * <p>
+     * Where a token ends is only known once the parser moves on to the next one, so tokens are
+     * dispatched one step behind the parser, just like {@link #hasNext()} peeks at the next event.
+     */
+    private void parse(XmlVisitor v) throws IOException {
+        XMLStreamReader r = cursor;
+        int kind = r.getEventType();
+        int name = -1;
+        int skipping = 0;       // depth into the element whose contents are skipped
+        boolean dtd = false;
+        while (true) {
+            int e = nextPos.e;
+            boolean more;
+            try {
+                more = r.hasNext();
+                if (more) {
+                    r.next();
+                    e = EventIndex.offset(r)+cumulativeDelta;
+                }
+            } catch (XMLStreamException x) {
+                return; // hasNext() ends the scan the same way
+            }
+            if (!advance(EventIndex.isCharacters(kind), e))
+                return;
+            lastPos.set(nextPos);
+            if (metrics!=null)
+                metrics.eventParsed(kind);
+            if (kind==XMLStreamConstants.DTD)
+                dtd = true;
+
+            boolean dispatch = true;
+            if (skipping>0) {
+                if (kind==XMLStreamConstants.START_ELEMENT)
+                    skipping++;
+                if (kind==XMLStreamConstants.END_ELEMENT)
+                    skipping--;
+                dispatch = skipping==0; // only the end tag of the skipped element
+            }
+            if (dispatch && kind==XMLStreamConstants.START_ELEMENT)
+                path = enter(name, startTagEnd());
+            if (building!=null)
+                building.add(kind, lastPos.s-cumulativeDelta, lastPos.e-cumulativeDelta,
+                        dispatch && kind==XMLStreamConstants.END_ELEMENT ? path.getNameId() : name);
 
-            while (hasNext()) {
-                XMLEvent event = nextEvent();
+            if (dispatch) {
+                if (kind==XMLStreamConstants.START_ELEMENT) {
+                    startElement(v);
+                    Flow f = v.takeFlow();
+                    if (f==Flow.STOP) {
+                        building = null;
+                        return;
+                    }
+                    if (f==Flow.SKIP_SUBTREE) {
+                        if (!dtd && fastForward())
+                            r = cursor;
+                        else
+                            skipping = 1;
+                    }
+                }
+                if (kind==XMLStreamConstants.END_ELEMENT) {
+                    endElement(v);
+                    if (v.takeFlow()==Flow.STOP) {
+                        building = null;
+                        return;
+                    }
+                }
+            }
+            if (stream!=null)
+                stream.discardBefore(lowWaterMark());
+
+            if (!more)
+                return;
+            kind = r.getEventType();
+            name = -1;
+            if (kind==XMLStreamConstants.START_ELEMENT || (skipping>0 && kind==XMLStreamConstants.END_ELEMENT))
+                name = names.intern(r.getName());
+        }
+    }
+
+    /**
+     * Parses the document with {@link #tokenizer}.
+     *
+     * <p>
+     * Unlike {@link #parse(XmlVisitor)}, the tokenizer knows where a token ends as it reports it,
+     * so tokens are dispatched right away.
+     */
+    private void tokenize(XmlVisitor v) throws IOException {
+        Tokenizer t = tokenizer;
+        int skipping = 0;       // depth into the element whose contents are skipped
+        while (t.next()) {
+            int kind = t.kind();
+            nextPos.set(t.start()+cumulativeDelta, t.end()+cumulativeDelta);
+            lastPos.set(nextPos);
+            if (metrics!=null)
+                metrics.eventParsed(kind);
+
+            boolean dispatch = true;
+            if (skipping>0) {
+                if (kind==XMLStreamConstants.START_ELEMENT)
+                    skipping++;
+                if (kind==XMLStreamConstants.END_ELEMENT)
+                    skipping--;
+                dispatch = skipping==0; // only the end tag of the skipped element
+            }
+            if (dispatch && kind==XMLStreamConstants.START_ELEMENT)
+                path = enter(t.nameId(), t.tagEnd()+cumulativeDelta);
+            if (building!=null)
+                building.add(kind, t.start(), t.end(), t.nameId());
+
+            if (dispatch) {
+                if (kind==XMLStreamConstants.START_ELEMENT) {
+                    startElement(v);
+                    Flow f = v.takeFlow();
+                    if (f==Flow.STOP) {
+                        building = null;
+                        return;
+                    }
+                    if (f==Flow.SKIP_SUBTREE)
+                        skipping = 1;
+                }
+                if (kind==XMLStreamConstants.END_ELEMENT) {
+                    endElement(v);
+                    if (v.takeFlow()==Flow.STOP) {
+                        building = null;
+                        return;
+                    }
+                }
+            }
+            if (stream!=null)
+                stream.discardBefore(lowWaterMark());
+        }
+    }
+
+    /**
+     * Skips the contents of the current element without parsing them, by finding the end tag
+     * with {@link EventIndex#findEndTag(Reader, int)} and starting a new parser there.
+     *
+     * <p>
+     * This is only worth it for a big element. Otherwise, and when the document can't be read from
+     * the middle, the caller lets the parser go through the contents without reporting them.
+     *
+     * @return
+     *      false if the contents are not skipped.
+     */
+    private boolean fastForward() throws IOException {
+        if (lastPos.s==lastPos.e)
+            return false;   // <a/> has nothing to skip
+        Reader in = xml.openReader(lastPos.e);
+        if (in==null)
+            return false;
+        int end;
+        try {
+            end = EventIndex.findEndTag(in, lastPos.e);
+        } finally {
+            in.close();
+        }
+        if (end-lastPos.e < FAST_FORWARD_THRESHOLD)
+            return false;
+
+        // the new parser needs the start tags of the ancestors for namespace bindings, and to see the end tag
+        StringBuilder tags = new StringBuilder();
+        int n = 0;
+        for (XmlPath p=path; p!=null; p=p.getParent(), n++) {
+            String t = p.getTagText();
+            if (t==null)
+                return false;
+            tags.insert(0, t);
+        }
+
+        try {
+            XMLStreamReader r = getFactory().createXMLStreamReader(new PrefixedReader(tags.toString(), xml.openReader(end)));
+            for (int starts=0; starts<n; ) {
+                if (r.next()==XMLStreamConstants.START_ELEMENT)
+                    starts++;
+            }
+            if (r.next()!=XMLStreamConstants.END_ELEMENT) {
+                r.close();
+                return false;
+            }
+            cursor.close();
+            cursor = r;
+            cumulativeDelta = end-EventIndex.offset(r);
+        } catch (XMLStreamException e) {
+            return false;
+        }
+        nextPos.set(end, end);
+        building = null;    // we don't know the events we skipped
+        return true;
+    }
+
+    /**
+     * Reads a string, then the rest from another reader.
+     */
+    private static final class PrefixedReader extends Reader {
+        private final String prefix;
+        private int pos;
+        private final Reader rest;
+
+        PrefixedReader(String prefix, Reader rest) {
+            this.prefix = prefix;
+            this.rest = rest;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) throws IOException {
+            if (pos<prefix.length()) {
+                int n = Math.min(len, prefix.length()-pos);
+                prefix.getChars(pos, pos+n, buf, off);
+                pos += n;
+                return n;
+            }
+            return rest.read(buf, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            rest.close();
+        }
+    }
+
+    /**
+     * Parses the document through the {@link XMLEventReader} view.
+     */
+    private void parseEvents(XmlVisitor v) throws XMLStreamException, IOException {
+        int skipping = 0;
+        while (hasNext()) {
+            XMLEvent event = nextEvent();
+            if (metrics!=null)
+                metrics.eventParsed(event.getEventType());
+
+            boolean dispatch = true;
+            if (skipping>0) {
+                if (event.isStartElement())
+                    skipping++;
+                if (event.isEndElement())
+                    skipping--;
+                dispatch = skipping==0;
+            }
+            int name = -1;
+            if (event.isStartElement()) {
+                if (dispatch) {
+                    path = new XmlPath(path, names, event.asStartElement());
+                    name = path.getNameId();
+                } else {
+                    name = names.intern(event.asStartElement().getName());
+                }
+            }
+            if (event.isEndElement())
+                name = dispatch ? path.getNameId() : names.intern(event.asEndElement().getName());
+            if (building!=null)
+                building.add(event.getEventType(), lastPos.s-cumulativeDelta, lastPos.e-cumulativeDelta, name);
+
+            if (dispatch) {
                 if (event.isStartElement()) {
-                    path = new XmlPath(path, event.asStartElement());
-                    v.startElement();
+                    startElement(v);
+                    Flow f = v.takeFlow();
+                    if (f==Flow.STOP) {
+                        building = null;
+                        return;
+                    }
+                    if (f==Flow.SKIP_SUBTREE)
+                        skipping = 1;
                 }
                 if (event.isEndElement()) {
-                    v.endElement();
-                    path = path.getParent();
+                    endElement(v);
+                    if (v.takeFlow()==Flow.STOP) {
+                        building = null;
+                        return;
+                    }
                 }
             }
-            return isModified();
+            if (stream!=null)
+                stream.discardBefore(lowWaterMark());
+        }
+    }
+
+    /**
+     * Goes through the events in the index, as if they are parsed.
+     */
+    private void replay(XmlVisitor v, EventIndex x) {
+        for (int i=0; i<x.size(); i++) {
+            int kind = x.kind(i);
+            if (!advance(EventIndex.isCharacters(kind), x.end(i)+cumulativeDelta))
+                break;
+            lastPos.set(nextPos);
+            if (metrics!=null)
+                metrics.eventParsed(kind);
+
+            if (kind==XMLStreamConstants.START_ELEMENT) {
+                path = enter(x.nameId(i), startTagEnd());
+                startElement(v);
+                Flow f = v.takeFlow();
+                if (f==Flow.STOP)
+                    return;
+                if (f==Flow.SKIP_SUBTREE) {
+                    // go straight to the end tag
+                    int m = x.match(i);
+                    int p = x.start(m)+cumulativeDelta;
+                    nextPos.set(p, p);
+                    i = m-1;
+                }
+            }
+            if (kind==XMLStreamConstants.END_ELEMENT) {
+                endElement(v);
+                if (v.takeFlow()==Flow.STOP)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Gets the text of the start tag that {@link #lastPos} points to.
+     */
+    private String startTag() {
+        return xml.substring(lastPos.s, startTagEnd());
+    }
+
+    private int startTagEnd() {
+        int e = lastPos.e;
+        if (lastPos.s==e) {
+            // an empty element like <a/> is reported as an empty start tag, followed by the end tag that covers it
+            e = Math.max(EventIndex.tagEnd(xml, lastPos.s), e);
+        }
+        return e;
+    }
+
+    /**
+     * Creates the path for the start tag that starts at {@link #lastPos} and ends at the given position.
+     *
+     * <p>
+     * The text of the start tag is only copied out of the document when it's asked for, except when streaming,
+     * as the text may have been written out by then.
+     */
+    private XmlPath enter(int nameId, int tagEnd) {
+        if (stream!=null)
+            return new XmlPath(path, names, nameId, xml.substring(lastPos.s, tagEnd), getFactory());
+        return new XmlPath(path, names, nameId, xml, lastPos.s, tagEnd, getFactory());
+    }
+
+    /**
+     * Moves the start tags of the open elements along with an edit. Called before the document is changed.
+     */
+    private void updatePath(int start, int end, int delta) {
+        for (XmlPath p=path; p!=null; p=p.getParent())
+            p.update(start, end, delta);
+    }
+
+    private void startElement(XmlVisitor v) {
+        if (metrics==null) {
+            v.startElement();
+        } else {
+            metrics.elementVisited(path);
+            call(v, Callback.START_ELEMENT);
+        }
+    }
+
+    private void endElement(XmlVisitor v) {
+        if (metrics==null)
+            v.endElement();
+        else
+            call(v, Callback.END_ELEMENT);
+        path.release();
+        path = path.getParent();
+    }
+
+    /**
+     * Calls a visitor and reports how long it took. Only used when {@link #metrics} is set.
+     */
+    /*package*/ void call(XmlVisitor v, Callback c) {
+        if (v instanceof CompositeVisitor) {
+            // this times the individual visitors
+            c.invoke(v, this);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            c.invoke(v, this);
         } finally {
-            this.path = null;
+            metrics.visitorCalled(v, c, System.nanoTime()-start);
         }
     }
 
+    /**
+     * Computes the smallest offset that's still reachable from marks.
+     */
+    private int lowWaterMark() {
+        int low = nextPos.s;
+        if (lastPos.isSet())
+            low = Math.min(low, lastPos.s);
+        int m = marks.firstStart();
+        if (m>=0)
+            low = Math.min(low, m);
+        return low;
+    }
+
+    /**
+     * Applies edits recorded in the journal to the document.
+     */
+    private void applyJournal() {
+        List<Edit> sorted = new ArrayList<Edit>(journal);
+        Collections.sort(sorted, Edit.POSITION);
+        for (int i=1; i<sorted.size(); i++) {
+            if (sorted.get(i-1).getEnd() > sorted.get(i).getStart())
+                throw new IllegalStateException("Overlapping edits: "+sorted.get(i-1)+" and "+sorted.get(i));
+        }
+        applyEdits(sorted);
+        edits = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Applies sorted, non-overlapping edits to the document, then update marks accordingly.
+     */
+    private void applyEdits(List<Edit> sorted) {
+        int d = 0;
+        for (Edit e : sorted) {
+            if (index!=null)
+                log.record(e.getStart()+d, e.getEnd()+d, e.getReplacement().length());
+            recordChange(e.getStart()+d, e.getEnd()+d, e.getReplacement().length());
+            if (undo!=null)
+                undo.add(new Edit(e.getStart()+d, e.getStart()+d+e.getReplacement().length(), xml.substring(e.getStart(), e.getEnd())));
+            d += e.getDelta();
+        }
+
+        // start tags that the edits cut into are copied while the positions still point to them
+        for (Edit e : sorted)
+            for (XmlPath p=path; p!=null; p=p.getParent())
+                p.keep(e.getStart(), e.getEnd());
+
+        // going backward, each edit moves marks as if it's made right now
+        for (int i=sorted.size()-1; i>=0; i--) {
+            Edit e = sorted.get(i);
+            int n = marks.update(e.getStart(), e.getEnd(), e.getDelta());
+            lastPos.update(e.getStart(), e.getEnd(), e.getDelta());
+            nextPos.update(e.getStart(), e.getEnd(), e.getDelta());
+            updatePath(e.getStart(), e.getEnd(), e.getDelta());
+            if (metrics!=null)
+                metrics.editApplied(e, n);
+        }
+
+        if (metrics!=null)
+            metrics.bufferChanged(xml.getCharactersMoved(sorted));
+        xml.apply(sorted);
+        if (!sorted.isEmpty())
+            modified = true;
+    }
+
+    /**
+     * Takes a checkpoint that {@link #rollback(Checkpoint)} can go back to. Until the checkpoint is rolled back
+     * to or {@linkplain #commit(Checkpoint) committed}, the text that edits replace is kept, so that they can be
+     * undone.
+     *
+     * <p>
+     * Checkpoints nest: rolling back to or committing a checkpoint does the same to the checkpoints taken after it.
+     * A checkpoint taken in a journaled scan can only be used in the same scan.
+     */
+    public Checkpoint checkpoint() {
+        if (stream!=null)
+            throw new IllegalStateException("Streaming document cannot be rolled back");
+        if (undo==null)
+            undo = new ArrayList<Edit>();
+        Checkpoint c = new Checkpoint(undo.size(), modified, journal, changes, recording);
+        checkpoints.add(c);
+        return c;
+    }
+
+    /**
+     * Undoes the edits made since the checkpoint was taken, which takes time in proportion to the edits,
+     * and restores {@link #isModified()}.
+     *
+     * <p>
+     * Marks that survived the edits are moved back to where they were. Marks that were cleared by them stay
+     * cleared.
+     */
+    public void rollback(Checkpoint c) {
+        int i = indexOf(c);
+        if (c.journal!=journal)
+            throw new IllegalStateException("Checkpoint belongs to another scan");
+        if (journal!=null) {
+            journal.subList(c.journalSize, journal.size()).clear();
+        } else {
+            List<Edit> inverse = undo.subList(c.undoSize, undo.size());
+            List<Edit> u = undo;
+            undo = null;    // undoing isn't undoable
+            try {
+                for (int k=inverse.size()-1; k>=0; k--) {
+                    Edit e = inverse.get(k);
+                    replace(new Mark(this, e.getStart(), e.getEnd(), false), e.getReplacement());
+                }
+            } finally {
+                undo = u;
+            }
+            inverse.clear();
+            // the document is back to what it was, so are the changes made to it
+            if (c.changes==changes)
+                changes.restore(c.changesCopy);
+            if (c.recording==recording && recording!=null)
+                recording.restore(c.recordingCopy);
+        }
+        modified = c.modified;
+        release(i);
+    }
+
+    /**
+     * Keeps the edits made since the checkpoint was taken, and stops keeping what's needed to undo them
+     * unless an earlier checkpoint still needs it.
+     */
+    public void commit(Checkpoint c) {
+        release(indexOf(c));
+    }
+
+    private int indexOf(Checkpoint c) {
+        int i = checkpoints.indexOf(c);
+        if (i<0)
+            throw new IllegalStateException("Checkpoint is already rolled back to or committed");
+        return i;
+    }
+
+    private void release(int i) {
+        checkpoints.subList(i, checkpoints.size()).clear();
+        if (checkpoints.isEmpty())
+            undo = null;
+    }
 
     /**
      * Getter for property 'modified'.
@@ -229,7 +1315,7 @@ public class XmlPatcher implements XMLEventReader {
      */
     public XMLEvent peek()
             throws XMLStreamException {
-        return backing.peek();
+        return backing().peek();
     }
 
     /**
@@ -237,7 +1323,7 @@ public class XmlPatcher implements XMLEventReader {
      */
     public String getElementText()
             throws XMLStreamException {
-        return backing.getElementText();
+        return backing().getElementText();
     }
 
     /**
@@ -261,7 +1347,7 @@ public class XmlPatcher implements XMLEventReader {
      * {@inheritDoc}
      */
     public Object getProperty(String name) {
-        return backing.getProperty(name);
+        return backing().getProperty(name);
     }
 
     /**
@@ -305,38 +1391,49 @@ public class XmlPatcher implements XMLEventReader {
             // fast path
             return true;
         }
-        if (!backing.hasNext()) {
+        if (!backing().hasNext()) {
             // fast path
             return false;
         }
         try {
             next = backing.nextEvent();
-            int s = nextPos.e;
-            int e = s;
+            int e = nextPos.e;
             if (backing.hasNext()) {
                 e = backing.peek().getLocation().getCharacterOffset()+cumulativeDelta;
             }
+            return advance(next.isCharacters(), e);
+        } catch (XMLStreamException e) {
+            return false;
+        }
+    }
 
-            if (e != -1) {
-                if (!next.isCharacters()) {
-                    while (s < e && s < xml.length() &&
-                            (c(s) == '\n' || c(s) == '\r')) {
-                        s++;
-                    }
-                    nextPos.set(s, e);
-                } else {
-                    nextPos.set(s, e);
-                    while (nextEndIncludesNextEvent() || nextEndIncludesNextEndElement()) {
-                        nextPos.grow(-1);
-                    }
+    /**
+     * Sets {@link #nextPos} to the next event, which starts where the last one ended.
+     *
+     * @param e
+     *      Where the next event ends, as reported by the parser.
+     * @return
+     *      false if we've reached the end of the document.
+     */
+    private boolean advance(boolean characters, int e) {
+        int s = nextPos.e;
+        if (e != -1) {
+            if (!characters) {
+                while (s < e && s < xml.length() &&
+                        (c(s) == '\n' || c(s) == '\r')) {
+                    s++;
                 }
+                nextPos.set(s, e);
             } else {
                 nextPos.set(s, e);
+                while (nextEndIncludesNextEvent() || nextEndIncludesNextEndElement()) {
+                    nextPos.grow(-1);
+                }
             }
-            return s < xml.length();
-        } catch (XMLStreamException e) {
-            return false;
+        } else {
+            nextPos.set(s, e);
         }
+        return s < xml.length();
     }
 
     /**
@@ -346,6 +1443,64 @@ public class XmlPatcher implements XMLEventReader {
         return lastPos;
     }
 
+    /**
+     * Gets a mark that covers the name of the given attribute of the current start tag.
+     *
+     * @see #getAttributeValue(String)
+     */
+    public Mark getAttributeName(String qname) {
+        return attribute(qname, 0, true);
+    }
+
+    /**
+     * Gets a mark that covers the value of the given attribute of the current start tag, without the quotes,
+     * so that the value can be replaced without touching the rest of the tag. The replacement is inserted
+     * as-is, so it needs to be escaped.
+     *
+     * <p>
+     * This can only be called from {@link XmlVisitor#startElement()}. Clear the mark when it's no longer needed.
+     *
+     * @param qname
+     *      Name of the attribute as it's written in the tag, including its prefix if any.
+     * @return
+     *      null if the current start tag doesn't have the attribute.
+     */
+    public Mark getAttributeValue(String qname) {
+        return attribute(qname, 2, true);
+    }
+
+    /**
+     * Sets the value of the given attribute of the current start tag, adding the attribute at the end of the tag
+     * if it isn't there yet. The value is inserted as-is, so it needs to be escaped.
+     *
+     * <p>
+     * This can only be called from {@link XmlVisitor#startElement()}.
+     */
+    public void setAttribute(String qname, String value) {
+        Mark m = attribute(qname, 2, false);
+        if (m!=null) {
+            m.replace(value);
+        } else {
+            String tag = startTag();
+            int i = tag.length()-1;     // at '>'
+            if (tag.charAt(i-1)=='/')
+                i--;
+            while (Character.isWhitespace(tag.charAt(i-1)))
+                i--;
+            new Mark(this, lastPos.s+i, lastPos.s+i, false).replace(" "+qname+"=\""+value+"\"");
+        }
+    }
+
+    private Mark attribute(String qname, int i, boolean tracked) {
+        int s = lastPos.s;
+        if (!lastPos.isSet() || s>=xml.length() || xml.charAt(s)!='<' || "/?!".indexOf(xml.charAt(s+1))>=0)
+            throw new IllegalStateException("Not at a start tag");
+        int[] a = EventIndex.findAttribute(startTag(), qname);
+        if (a==null)
+            return null;
+        return new Mark(this, s+a[i], s+a[i+1], tracked);
+    }
+
     /**
      * Creates a new mark.
      */
@@ -403,30 +1558,185 @@ public class XmlPatcher implements XMLEventReader {
         Mark.between(a, b).replace(replacement);
     }
 
+    /**
+     * Replaces the text of the given mark, or records the edit if we are in the journaled scan.
+     */
+    /*package*/ void replace(Mark m, String replacement) {
+        if (journal!=null) {
+            journal.add(new Edit(m.start(), m.end(), replacement));
+            return;
+        }
+        Edit e = null;
+        if (metrics!=null) {
+            e = new Edit(m.start(), m.end(), replacement);
+            metrics.bufferChanged(xml.getCharactersMoved(m.start(), m.end(), replacement.length()));
+        }
+        if (building!=null && m.end()>lastPos.e)
+            building = null;    // edits ahead of the parser would throw off the positions we are recording
+        if (index!=null || building!=null)
+            log.record(m.start(), m.end(), replacement.length());
+        recordChange(m.start(), m.end(), replacement.length());
+        if (undo!=null)
+            undo.add(new Edit(m.start(), m.start()+replacement.length(), xml.substring(m.start(), m.end())));
+        updatePath(m.start(), m.end(), replacement.length()-m.length());
+        xml.replace(m.start(), m.end(), replacement);
+        modified = true;
+        int n = updateMarks(m, replacement.length()-m.length());
+        if (metrics!=null)
+            metrics.editApplied(e, n);
+    }
+
     /**
      * Update all other marks when one mark has changed its content.
+     *
+     * @return number of marks that are updated individually.
      */
-    /*package*/ void updateMarks(Mark changed, int delta) {
-        if (delta == 0) return;
+    /*package*/ int updateMarks(Mark changed, int delta) {
+        if (delta == 0) return 0;
+
+        int s = changed.start();
+        int e = changed.end();
+        boolean tracked = changed.node!=null;
+        if (tracked)
+            marks.remove(changed);
+
+        if (nextPos!=changed)
+            nextPos.update(s, e, delta);
+        if (lastPos!=changed)
+            lastPos.update(s, e, delta);
+        int n = marks.update(s, e, delta);
 
-        nextPos.update(changed, delta);
-        lastPos.update(changed, delta);
-        for (Mark m : marks) {
-            if (m != changed)
-                m.update(changed, delta);
-        }
         changed.grow(delta);
+        if (tracked)
+            marks.add(changed);
         cumulativeDelta+=delta;
-        modified = true;
+        return n;
     }
 
     public void writeTo(File f) throws IOException {
-        Writer writer = WriterFactory.newXmlWriter(f);
+        if (source!=null && f.getCanonicalFile().equals(source.getCanonicalFile()))
+            save();
+        else
+            write(f);
+    }
+
+    /**
+     * Writes the document back to the file it was created from, and starts tracking {@link #getChanges()} afresh.
+     *
+     * <p>
+     * If the file hasn't been touched since it was read, and it's in UTF-8, US-ASCII, or ISO-8859-1, only the part
+     * of the file that changed is written: just the changed bytes if every change keeps the byte length of what it
+     * replaces, or else everything from the first change onward, as long as that's a small part of the file.
+     * Otherwise the whole document is written over the file, which keeps its permissions, owner, and links.
+     * A {@linkplain #XmlPatcher(File, boolean) mapped} file is never written over, and the document is written to
+     * a temporary file instead, which then replaces the file, or the file that a symbolic link points to.
+     *
+     * @throws IllegalStateException
+     *      if this patcher wasn't created from a file.
+     */
+    public void save() throws IOException {
+        if (source==null)
+            throw new IllegalStateException("This patcher wasn't created from a file");
+
+        boolean untouched = source.length()==sourceLength && source.lastModified()==sourceModified;
+        if (!untouched || !(changes.isEmpty() || saveInPlace()))
+            overwrite(source);
+
+        changes = new EditLog();
+        original = null;
+        sourceLength = source.length();
+        sourceModified = source.lastModified();
+    }
+
+    private boolean saveInPlace() throws IOException {
+        if (mapped!=null)
+            return false;   // the document, and its snapshots, are still reading from the file
+        if (!sourceEncoding.equalsIgnoreCase(declaredEncoding()))
+            return false;   // the document would be written in another encoding
+        InPlaceWriter w = InPlaceWriter.plan(source, sourceEncoding, original, xml, changes);
+        if (w==null)
+            return false;
+        w.write();
+        return true;
+    }
+
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+
+    /**
+     * Encoding declared in the XML declaration of the current document, which is what {@link #write(File)} uses.
+     */
+    private String declaredEncoding() {
+        if (xml.length()>=5 && xml.substring(0,5).equals("<?xml")) {
+            String head = xml.substring(0, Math.min(xml.length(), 4096));
+            int end = head.indexOf("?>");
+            if (end>0) {
+                Matcher m = ENCODING.matcher(head.substring(0, end));
+                if (m.find())
+                    return m.group(1);
+            }
+        }
+        return "UTF-8";
+    }
+
+    /**
+     * Writes the whole document back to the file it was read from.
+     *
+     * <p>
+     * Writing through the existing file keeps its permissions, owner, and hard links, and symbolic links keep
+     * pointing to it. The document is encoded in full before the file is truncated, so that only an I/O error
+     * can leave the file half-written.
+     *
+     * <p>
+     * Truncating a file that we are still reading from via the mapping would pull the rug from under us,
+     * so a mapped file is replaced by another file instead, which a mapping keeps the original file alive for.
+     * Symbolic links are resolved first, so that the link stays, and the file it points to is replaced.
+     */
+    private void overwrite(File f) throws IOException {
+        if (mapped!=null) {
+            writeAndRename(f.getCanonicalFile());
+            return;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        write(buf);
+        OutputStream out = new FileOutputStream(f);
+        try {
+            buf.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeAndRename(File f) throws IOException {
+        File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+        try {
+            write(tmp);
+            if (!tmp.renameTo(f))
+                throw new IOException("Failed to rename "+tmp+" to "+f+". A mapped file can't be replaced on some platforms, such as Windows");
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private void write(File f) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
         try {
-            writer.write(xml.toString());
+            write(out);
         } finally {
-            IOUtil.close(writer);
+            out.close();
+        }
+    }
+
+    private void write(OutputStream out) throws IOException {
+        if (mapped!=null && sourceEncoding.equalsIgnoreCase(declaredEncoding())) {
+            // copy the bytes that are still in the mapping, instead of decoding and encoding them
+            if (sourceBom)
+                out.write(new byte[]{(byte)0xEF,(byte)0xBB,(byte)0xBF});
+            ((PieceTableBuffer)xml).writeTo(out, sourceEncoding);
+            return;
         }
 
+        Writer writer = WriterFactory.newXmlWriter(out);
+        xml.writeTo(writer);
+        writer.flush();
     }
 }
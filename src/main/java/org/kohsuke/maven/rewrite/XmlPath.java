@@ -1,6 +1,12 @@
 package org.kohsuke.maven.rewrite;
 
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.StringReader;
 
 /**
  * Path representation from the root element.
@@ -10,35 +16,193 @@ import javax.xml.stream.events.StartElement;
  * Each {@link XmlPath} is immutable, and every element in XML gets an unique instance. This allows visitors
  * to hold on to the reference and match up start/end tags more easily.
  *
+ * <p>
+ * A path only holds the interned name of the element and a pointer to its parent. The string form of the path
+ * is computed when it's first asked for.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class XmlPath {
     private final XmlPath parent;
-    private final StartElement tag;
     private final int depth;
-    private final String localName;
+    private final int nameId;
+    private final QName name;
+
+    /**
+     * Start tag of this element, kept only until the end tag is processed.
+     */
+    private StartElement tag;
+
+    /**
+     * Text of the start tag, when {@link #tag} is yet to be parsed.
+     */
+    private String tagText;
+
+    /**
+     * Where the start tag is in the document, when {@link #tagText} is yet to be copied out of it.
+     * {@link XmlPatcher} keeps the range up to date with the edits while this element is open.
+     */
+    private DocumentBuffer text;
+    private int tagStart, tagEnd;
 
-    XmlPath(XmlPath parent, StartElement tag) {
+    /**
+     * Parses {@link #tagText}, so that it's done the same way as the rest of the document.
+     */
+    private XMLInputFactory factory;
+
+    /**
+     * Lazily computed string form.
+     */
+    private String localNames;
+
+    /**
+     * States of {@link PathMatcher}s for this element, as a list of matcher/state pairs.
+     */
+    private Object[] matchStates;
+
+    XmlPath(XmlPath parent, NameTable names, StartElement tag) {
         this.parent = parent;
         this.tag = tag;
+        this.nameId = names.intern(tag.getName());
+        this.name = names.get(nameId);
+        this.depth = parent==null ? 0 : parent.depth+1;
+    }
 
-        if (parent==null) {
-            this.depth = 0;
-            this.localName = '/'+tag.getName().getLocalPart();
-        } else {
-            this.depth = parent.depth+1;
-            this.localName = parent.getLocalNames()+'/'+tag.getName().getLocalPart();
-        }
+    /**
+     * Creates a path whose start tag is parsed only when it's asked for.
+     */
+    XmlPath(XmlPath parent, NameTable names, int nameId, String tagText, XMLInputFactory factory) {
+        this.parent = parent;
+        this.tagText = tagText;
+        this.factory = factory;
+        this.nameId = nameId;
+        this.name = names.get(nameId);
+        this.depth = parent==null ? 0 : parent.depth+1;
+    }
+
+    /**
+     * Creates a path whose start tag is copied out of the document only when it's asked for.
+     */
+    XmlPath(XmlPath parent, NameTable names, int nameId, DocumentBuffer text, int tagStart, int tagEnd, XMLInputFactory factory) {
+        this(parent, names, nameId, null, factory);
+        this.text = text;
+        this.tagStart = tagStart;
+        this.tagEnd = tagEnd;
     }
 
     public XmlPath getParent() {
         return parent;
     }
 
+    /**
+     * Gets the start tag of this element.
+     *
+     * @return
+     *      null once the end tag of this element is processed.
+     */
     public StartElement getTag() {
+        if (tag==null && getTagText()!=null)
+            tag = parseTag();
         return tag;
     }
 
+    /**
+     * Gets the text of the start tag, if this path is created from one.
+     */
+    /*package*/ String getTagText() {
+        if (tagText==null && text!=null) {
+            tagText = text.substring(tagStart, tagEnd);
+            text = null;
+        }
+        return tagText;
+    }
+
+    /**
+     * Moves the start tag along with an edit to the document, just like {@link Mark#update(int, int, int)}.
+     * Must be called before the document is changed.
+     */
+    /*package*/ void update(int start, int end, int delta) {
+        if (text==null || tagEnd<=start)
+            return;
+        if (end<=tagStart) {
+            tagStart += delta;
+            tagEnd += delta;
+        } else if (tagStart<=start && end<=tagEnd) {
+            tagEnd += delta;
+        } else {
+            getTagText();   // the start tag is partly replaced, so keep it as it was
+        }
+    }
+
+    /**
+     * Copies out the start tag if it's partly replaced by an edit that's about to be made.
+     * Used when a batch of edits is applied, as {@link #update(int, int, int)} no longer sees the original positions.
+     */
+    /*package*/ void keep(int start, int end) {
+        if (text!=null && start<tagEnd && tagStart<end && !(tagStart<=start && end<=tagEnd))
+            getTagText();
+    }
+
+    /**
+     * Parses {@link #tagText} with the start tags of the ancestors, so that namespace prefixes are resolved.
+     */
+    private StartElement parseTag() {
+        StringBuilder buf = new StringBuilder();
+        for (XmlPath p=this; p!=null; p=p.parent) {
+            String t = p.getTagText();
+            if (t==null)
+                throw new IllegalStateException("The start tag of "+p.getName()+" is no longer available");
+            buf.insert(0, t);
+        }
+        try {
+            XMLEventReader r = factory.createXMLEventReader(new StringReader(buf.toString()));
+            try {
+                StartElement last = null;
+                // the document is cut short after our start tag, so stop before the parser reaches the end
+                for (int i=0; i<=depth; ) {
+                    XMLEvent e = r.nextEvent();
+                    if (e.isStartElement()) {
+                        last = e.asStartElement();
+                        i++;
+                    }
+                }
+                return last;
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Failed to parse "+tagText, e);
+        }
+    }
+
+    /**
+     * Called when the end tag of this element is processed, so that we don't keep attributes of all the elements
+     * that visitors happen to hold on to.
+     */
+    /*package*/ void release() {
+        tag = null;
+        tagText = null;
+        text = null;
+    }
+
+    /**
+     * Gets the name of this element. The prefix is not retained.
+     */
+    public QName getName() {
+        return name;
+    }
+
+    public String getLocalName() {
+        return name.getLocalPart();
+    }
+
+    /**
+     * Id of the element name, which is unique among the names seen by the same {@link XmlPatcher}.
+     */
+    /*package*/ int getNameId() {
+        return nameId;
+    }
+
     /**
      * Takes the current element and return XPath-like path to it by concatanating all the local names.
      *
@@ -46,7 +210,29 @@ public class XmlPath {
      *      String like '/a/b/c'
      */
     public String getLocalNames() {
-        return localName;
+        if (localNames==null) {
+            String n = '/'+getLocalName();
+            localNames = parent==null ? n : parent.getLocalNames()+n;
+        }
+        return localNames;
+    }
+
+    /**
+     * Equivalent of <tt>getLocalNames().equals(localNames)</tt> that doesn't build the string.
+     */
+    public boolean matches(String localNames) {
+        if (this.localNames!=null)
+            return this.localNames.equals(localNames);
+
+        int end = localNames.length();
+        for (XmlPath p=this; p!=null; p=p.parent) {
+            String n = p.getLocalName();
+            int start = end-n.length();
+            if (start<1 || localNames.charAt(start-1)!='/' || !localNames.regionMatches(start,n,0,n.length()))
+                return false;
+            end = start-1;
+        }
+        return end==0;
     }
 
     /**
@@ -58,6 +244,29 @@ public class XmlPath {
         return depth;
     }
 
+    /*package*/ Object getMatchState(PathMatcher m) {
+        if (matchStates!=null) {
+            for (int i=0; i<matchStates.length; i+=2)
+                if (matchStates[i]==m)
+                    return matchStates[i+1];
+        }
+        return null;
+    }
+
+    /*package*/ void setMatchState(PathMatcher m, Object state) {
+        int n = 0;
+        if (matchStates==null) {
+            matchStates = new Object[2];
+        } else {
+            n = matchStates.length;
+            Object[] a = new Object[n+2];
+            System.arraycopy(matchStates,0,a,0,n);
+            matchStates = a;
+        }
+        matchStates[n] = m;
+        matchStates[n+1] = state;
+    }
+
     @Override
     public String toString() {
         return getLocalNames();
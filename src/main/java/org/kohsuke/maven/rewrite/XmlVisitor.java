@@ -1,5 +1,7 @@
 package org.kohsuke.maven.rewrite;
 
+import java.util.Collection;
+
 /**
  * Call back interface to walk over the XML document (and edit it.)
  *
@@ -9,6 +11,15 @@ package org.kohsuke.maven.rewrite;
 public abstract class XmlVisitor {
     private XmlPatcher patcher;
 
+    /**
+     * What the visitor asked for in the callback that just returned.
+     */
+    enum Flow {
+        CONTINUE, SKIP_SUBTREE, STOP
+    }
+
+    private Flow flow = Flow.CONTINUE;
+
     public XmlPatcher getPatcher() {
         return patcher;
     }
@@ -22,8 +33,79 @@ public abstract class XmlVisitor {
      */
     public void startDocument(XmlPatcher patcher) {
         this.patcher = patcher;
+        this.flow = Flow.CONTINUE;
     }
     public void startElement() {}
     public void endElement() {}
 
+    /**
+     * Forgets the patcher once the document is done with, so that a visitor kept around afterward
+     * doesn't keep the document alive.
+     */
+    /*package*/ void detach() {
+        patcher = null;
+    }
+
+    /**
+     * Strings that have to appear in the document for this visitor to do anything, such as the names of
+     * the elements it's looking for.
+     *
+     * <p>
+     * Before parsing the document, {@link XmlPatcher#scan(XmlVisitor)} looks for these strings in the text.
+     * When every visitor of the scan misses one of its strings, the document isn't parsed, and the visitors
+     * aren't called at all.
+     *
+     * @return
+     *      null if this visitor needs to see every document, which is the default.
+     * @see PathMatcher#getRequiredNames()
+     */
+    public Collection<String> getRequiredLiterals() {
+        return null;
+    }
+
+    /**
+     * Identifies what this visitor does to a document, for {@link ResultCache} to reuse the edits it made
+     * to the same document before.
+     *
+     * <p>
+     * Only visitors whose edits depend on nothing but the document and the fingerprint may return one, and
+     * they must be fine with not getting any callbacks when the result is reused.
+     * The fingerprint has to change whenever what the visitor does changes, so include its version and
+     * parameters in it.
+     *
+     * @return
+     *      null if the results of this visitor can't be reused, which is the default.
+     */
+    public String getFingerprint() {
+        return null;
+    }
+
+    /**
+     * Called from {@link #startElement()} to skip the contents of the current element.
+     * The next callback this visitor gets is the {@link #endElement()} of the same element.
+     *
+     * <p>
+     * The parser fast-forwards over the skipped part of the document, so visitors that only care about
+     * a small part of a big document should use this to avoid paying for the rest.
+     */
+    protected void skipSubtree() {
+        flow = Flow.SKIP_SUBTREE;
+    }
+
+    /**
+     * Called from a callback to end the scan when the callback returns. No more callbacks are made,
+     * and the edits made so far are kept.
+     */
+    protected void stop() {
+        flow = Flow.STOP;
+    }
+
+    /**
+     * Gets what the visitor asked for in the callback that just returned, and resets it.
+     */
+    /*package*/ Flow takeFlow() {
+        Flow f = flow;
+        flow = Flow.CONTINUE;
+        return f;
+    }
 }
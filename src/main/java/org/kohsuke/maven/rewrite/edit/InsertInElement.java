@@ -2,10 +2,12 @@ package org.kohsuke.maven.rewrite.edit;
 
 import com.google.common.base.Predicate;
 import org.kohsuke.maven.rewrite.Mark;
+import org.kohsuke.maven.rewrite.PathMatchers;
 import org.kohsuke.maven.rewrite.XmlPatcher;
 import org.kohsuke.maven.rewrite.XmlPath;
 import org.kohsuke.maven.rewrite.XmlVisitor;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -48,17 +50,28 @@ public abstract class InsertInElement extends XmlVisitor {
     }
 
     private void doInsert(XmlPath parent) {
-        Mark r = start.toCurrent();
+        Mark r = start.rangeToCurrent();
 
-        String indent = r.verbatim();
+        String indent = indentOf(r.verbatim());
         String inserted = insert();
         if (inserted!=null && inserted.length()!=0) {
-            r.replace(indent+inserted+indent);
-            r.clear();
+            // insert right before the current tag, so that we don't disturb what other visitors
+            // might have inserted in the same place before us.
+            r.rangeToCurrent().replace(inserted+indent);
             rewritten.add(parent);
         }
     }
 
+    /**
+     * Whitespace that precedes the current tag.
+     */
+    private static String indentOf(String s) {
+        int i = s.length();
+        while (i>0 && Character.isWhitespace(s.charAt(i-1)))
+            i--;
+        return s.substring(i);
+    }
+
     @Override
     public void endElement() {
         if (matcher.apply(getPath()) && lastStart==getPath()) {
@@ -70,4 +83,9 @@ public abstract class InsertInElement extends XmlVisitor {
     }
 
     protected abstract String insert();
+
+    @Override
+    public Collection<String> getRequiredLiterals() {
+        return PathMatchers.requiredNames(matcher);
+    }
 }
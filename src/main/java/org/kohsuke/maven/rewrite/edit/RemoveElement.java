@@ -0,0 +1,59 @@
+package org.kohsuke.maven.rewrite.edit;
+
+import com.google.common.base.Predicate;
+import org.kohsuke.maven.rewrite.Mark;
+import org.kohsuke.maven.rewrite.PathMatchers;
+import org.kohsuke.maven.rewrite.XmlPatcher;
+import org.kohsuke.maven.rewrite.XmlPath;
+import org.kohsuke.maven.rewrite.XmlVisitor;
+
+import java.util.Collection;
+
+/**
+ * Removes elements, including everything inside them. The whitespace around them is left alone.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class RemoveElement extends XmlVisitor {
+    private final Predicate<XmlPath> matcher;
+
+    /**
+     * Start tag of the element being removed.
+     */
+    private Mark start;
+
+    public RemoveElement(Predicate<XmlPath> matcher) {
+        this.matcher = matcher;
+    }
+
+    @Override
+    public void startDocument(XmlPatcher scanner) {
+        super.startDocument(scanner);
+        start = getPatcher().mark();
+        start.clear();  // until we find the element
+    }
+
+    @Override
+    public void startElement() {
+        if (matcher.apply(getPath())) {
+            start.set();
+            skipSubtree();  // everything inside goes away anyway
+        }
+    }
+
+    @Override
+    public void endElement() {
+        if (matcher.apply(getPath())) {
+            // the contents go first, as the range isn't updated by the other edits
+            start.rangeToCurrent().replace("");
+            start.replace("");
+            getPatcher().replace("");
+            start.clear();
+        }
+    }
+
+    @Override
+    public Collection<String> getRequiredLiterals() {
+        return PathMatchers.requiredNames(matcher);
+    }
+}
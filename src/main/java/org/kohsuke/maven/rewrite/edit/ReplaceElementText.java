@@ -2,10 +2,13 @@ package org.kohsuke.maven.rewrite.edit;
 
 import com.google.common.base.Predicate;
 import org.kohsuke.maven.rewrite.Mark;
+import org.kohsuke.maven.rewrite.PathMatchers;
 import org.kohsuke.maven.rewrite.XmlPatcher;
 import org.kohsuke.maven.rewrite.XmlPath;
 import org.kohsuke.maven.rewrite.XmlVisitor;
 
+import java.util.Collection;
+
 /**
  * Replaces an element text, such &lt;foo>abc&lt;/foo> to &lt;foo>def&lt;/foo>
  *
@@ -23,24 +26,32 @@ public abstract class ReplaceElementText extends XmlVisitor {
     public void startDocument(XmlPatcher scanner) {
         super.startDocument(scanner);
         m = getPatcher().mark();
+        m.clear();  // until we find the element
     }
 
     @Override
     public void startElement() {
-        if (matcher.apply(getPath()))
+        if (matcher.apply(getPath())) {
             m.set();
+            skipSubtree();  // everything inside is replaced anyway
+        }
     }
 
     @Override
     public void endElement() {
         if (matcher.apply(getPath())) {
-            Mark r = m.toCurrent();
+            Mark r = m.rangeToCurrent();
             String current = r.verbatim();
             String updated = replace(current);
             r.replace(updated);
-            r.clear();
+            m.clear();
         }
     }
 
     public abstract String replace(String current);
+
+    @Override
+    public Collection<String> getRequiredLiterals() {
+        return PathMatchers.requiredNames(matcher);
+    }
 }
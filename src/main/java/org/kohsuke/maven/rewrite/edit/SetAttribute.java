@@ -0,0 +1,43 @@
+package org.kohsuke.maven.rewrite.edit;
+
+import com.google.common.base.Predicate;
+import org.kohsuke.maven.rewrite.PathMatchers;
+import org.kohsuke.maven.rewrite.XmlPath;
+import org.kohsuke.maven.rewrite.XmlVisitor;
+
+import java.util.Collection;
+
+/**
+ * Sets an attribute of elements, adding it to those that don't have it yet.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see org.kohsuke.maven.rewrite.XmlPatcher#setAttribute(String, String)
+ */
+public class SetAttribute extends XmlVisitor {
+    private final Predicate<XmlPath> matcher;
+    private final String qname;
+    private final String value;
+
+    /**
+     * @param qname
+     *      Name of the attribute as it's written in the tag, including its prefix if any.
+     * @param value
+     *      Escaped value of the attribute, which is inserted as-is.
+     */
+    public SetAttribute(Predicate<XmlPath> matcher, String qname, String value) {
+        this.matcher = matcher;
+        this.qname = qname;
+        this.value = value;
+    }
+
+    @Override
+    public void startElement() {
+        if (matcher.apply(getPath()))
+            getPatcher().setAttribute(qname, value);
+    }
+
+    @Override
+    public Collection<String> getRequiredLiterals() {
+        return PathMatchers.requiredNames(matcher);
+    }
+}
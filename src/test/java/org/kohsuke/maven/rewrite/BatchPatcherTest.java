@@ -0,0 +1,87 @@
+package org.kohsuke.maven.rewrite;
+
+import com.google.common.base.Supplier;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.kohsuke.maven.rewrite.BatchPatcher.Report;
+import org.kohsuke.maven.rewrite.BatchPatcher.Status;
+import org.kohsuke.maven.rewrite.edit.ReplaceElementText;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class BatchPatcherTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private File dir;
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        if (dir!=null)
+            FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void patchTree() throws Exception {
+        dir = File.createTempFile("batch", "");
+        dir.delete();
+        for (int i=0; i<50; i++)
+            FileUtils.writeStringToFile(new File(dir, "m"+i+"/pom.xml"),
+                    "<project><version>"+(i%2==0 ? "1.0" : "2.0")+"</version></project>", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "broken/pom.xml"), "<project><version>boom</version></project>", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "other.xml"), "<project><version>1.0</version></project>", "UTF-8");
+
+        Report r = new BatchPatcher(executor).patchTree(dir, "pom.xml", new Supplier<XmlVisitor>() {
+            public XmlVisitor get() {
+                return new ReplaceElementText(PathMatchers.localNames("/project/version")) {
+                    @Override
+                    public String replace(String current) {
+                        if (current.equals("boom"))
+                            throw new IllegalArgumentException(current);
+                        return "2.0";
+                    }
+                };
+            }
+        });
+
+        assertEquals(51, r.getResults().size());
+        assertEquals(25, r.getResults(Status.MODIFIED).size());
+        assertEquals(25, r.getResults(Status.UNCHANGED).size());
+        assertEquals(1, r.getResults(Status.FAILED).size());
+        assertNotNull(r.getResults(Status.FAILED).get(0).getError());
+        assertEquals("<project><version>2.0</version></project>", FileUtils.readFileToString(new File(dir, "m0/pom.xml"), "UTF-8"));
+        assertEquals("<project><version>1.0</version></project>", FileUtils.readFileToString(new File(dir, "other.xml"), "UTF-8"));
+    }
+
+    @Test
+    public void symlinkCycle() throws Exception {
+        dir = File.createTempFile("batch", "");
+        dir.delete();
+        FileUtils.writeStringToFile(new File(dir, "m/pom.xml"), "<project><version>1.0</version></project>", "UTF-8");
+        Process p = new ProcessBuilder("ln", "-s", dir.getAbsolutePath(), new File(dir, "m/loop").getPath()).start();
+        Assume.assumeTrue(p.waitFor()==0);
+
+        Report r = new BatchPatcher(executor).patchTree(dir, "pom.xml", new Supplier<XmlVisitor>() {
+            public XmlVisitor get() {
+                return new XmlVisitor() {};
+            }
+        });
+        assertEquals(1, r.getResults().size());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void sharedVisitor() throws Exception {
+        final XmlVisitor v = new XmlVisitor() {};
+        new BatchPatcher(executor).patch(Arrays.asList(new File("a"), new File("b")), new Supplier<XmlVisitor>() {
+            public XmlVisitor get() {
+                return v;
+            }
+        });
+    }
+}
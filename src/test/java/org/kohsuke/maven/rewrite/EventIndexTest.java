@@ -0,0 +1,227 @@
+package org.kohsuke.maven.rewrite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class EventIndexTest {
+    private static final String DOC =
+            "<?xml version='1.0' encoding='UTF-8'?>\n" +
+            "<!-- head -->\n" +
+            "<project xmlns='urn:pom' xmlns:x='urn:x'>\n" +
+            "  <version>1.0</version>\n" +
+            "  <x:meta a='1 > 0' b=\"2\">a &amp; b</x:meta>\n" +
+            "  <dependencies>\n" +
+            "    <dependency>\n" +
+            "      <artifactId>a</artifactId>\n" +
+            "      <?pi data?>\n" +
+            "      <empty/>\n" +
+            "    </dependency>\n" +
+            "    <dependency>\n" +
+            "      <artifactId><![CDATA[b]]></artifactId>\n" +
+            "      <exclusions><x:exclusion/></exclusions>\n" +
+            "    </dependency>\n" +
+            "  </dependencies>\n" +
+            "</project>\n";
+
+    /**
+     * Records what visitors see, to compare a replayed scan with a parsed one.
+     */
+    private static class Recorder extends XmlVisitor {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void startElement() {
+            events.add("start "+getPath()+" "+getPath().getName()+" "+getPath().getTag().getName()+" "+getPatcher().getLast().verbatim());
+        }
+
+        @Override
+        public void endElement() {
+            events.add("end "+getPath()+" "+getPatcher().getLast().verbatim());
+        }
+    }
+
+    /**
+     * Makes random edits to the document.
+     */
+    private static class Editor extends XmlVisitor {
+        private final Random r;
+        private final List<Mark> starts = new ArrayList<Mark>();
+        private final List<Integer> counts = new ArrayList<Integer>();
+        private int edits;
+        private boolean leaf;
+
+        Editor(long seed) {
+            r = new Random(seed);
+        }
+
+        @Override
+        public void startElement() {
+            Mark last = getPatcher().getLast();
+            counts.add(edits);
+            if (getPath().getDepth()>1 && r.nextInt(8)==0) {
+                edits++;
+                Mark m = new Mark(getPatcher(), last.start(), last.start());
+                m.replace(r.nextBoolean() ? "<n x='1'>t</n>\n" : "<x:n/>");
+                m.clear();
+            }
+            Mark m = getPatcher().mark();
+            m.set();
+            starts.add(m);
+            leaf = true;
+        }
+
+        @Override
+        public void endElement() {
+            Mark start = starts.remove(starts.size()-1);
+            // the journaled mode doesn't allow overlapping edits
+            boolean untouched = counts.remove(counts.size()-1)==edits;
+            Mark last = getPatcher().getLast();
+            if (leaf && r.nextInt(4)==0 && start.isLeftOf(last)) {
+                Mark m = start.toCurrent();
+                m.replace(r.nextBoolean() ? "v"+r.nextInt(100) : "&lt;<![CDATA[c]]>");
+                m.clear();
+                edits++;
+            } else if (untouched && getPath().getDepth()>1 && r.nextInt(10)==0) {
+                Mark m = new Mark(getPatcher(), start.start(), last.end());
+                m.replace("");
+                m.clear();
+                edits++;
+            }
+            start.clear();
+            leaf = false;
+        }
+    }
+
+    @Test
+    public void replayedScansSeeTheSameEvents() throws Exception {
+        for (boolean journaled : new boolean[]{false,true}) {
+            XmlPatcher indexed = new XmlPatcher(new StringBuilder(DOC));
+            XmlPatcher parsed = new XmlPatcher(new StringBuilder(DOC));
+            indexed.setIndexed(true);
+            parsed.setIndexed(false);
+
+            for (int i=0; i<30; i++) {
+                indexed.setJournaled(journaled && i%2==0);
+                parsed.setJournaled(journaled && i%2==0);
+                indexed.scan(new Editor(i));
+                parsed.scan(new Editor(i));
+                assertEquals(parsed.asStringBuilder().toString(), indexed.asStringBuilder().toString());
+
+                Recorder a = new Recorder(), b = new Recorder();
+                indexed.scan(a);
+                parsed.scan(b);
+                assertEquals(b.events, a.events);
+                assertNotNull("should have replayed scan #"+i, indexed.index);
+            }
+        }
+    }
+
+    @Test
+    public void cursorAgreesWithEventReaderView() throws Exception {
+        XmlPatcher cursor = new XmlPatcher(new StringBuilder(DOC));
+        XmlPatcher events = new XmlPatcher(new StringBuilder(DOC));
+        cursor.setIndexed(false);
+        events.setEventReaderView(true);
+
+        for (int i=0; i<10; i++) {
+            cursor.scan(new Editor(i));
+            events.scan(new Editor(i));
+            assertEquals(events.asStringBuilder().toString(), cursor.asStringBuilder().toString());
+
+            Recorder a = new Recorder(), b = new Recorder();
+            cursor.scan(a);
+            events.scan(b);
+            assertEquals(b.events, a.events);
+        }
+
+        // the view is available to visitors
+        events.scan(new XmlVisitor() {
+            @Override
+            public void startElement() {
+                if (getPath().matches("/project/version")) {
+                    try {
+                        assertTrue(getPatcher().peek().isCharacters());
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    public void stringBuilderChangedDirectly() throws Exception {
+        StringBuilder doc = new StringBuilder(DOC);
+        XmlPatcher xml = new XmlPatcher(doc);
+        assertFalse(xml.isIndexed());
+        xml.scan(new Recorder());
+
+        // the same length, which the patcher can't tell from the length alone
+        int i = doc.indexOf("<version>1.0</version>");
+        doc.replace(i, i+22, "<versiom>1.0</versiom>");
+        Recorder a = new Recorder(), b = new Recorder();
+        xml.scan(a);
+        new XmlPatcher(new StringBuilder(doc)).scan(b);
+        assertEquals(b.events, a.events);
+    }
+
+    @Test
+    public void editsOutsideScan() throws Exception {
+        XmlPatcher xml = new XmlPatcher(new StringBuilder(DOC));
+        xml.setIndexed(true);
+        Recorder a = new Recorder();
+        final Mark[] version = new Mark[1];
+        xml.scan(new XmlVisitor() {
+            private Mark start;
+            @Override
+            public void startElement() {
+                if (getPath().matches("/project/version")) {
+                    start = getPatcher().mark();
+                    start.set();
+                }
+            }
+            @Override
+            public void endElement() {
+                if (getPath().matches("/project/version"))
+                    version[0] = start.toCurrent();
+            }
+        });
+        version[0].replace("2.0-SNAPSHOT");
+        xml.scan(a);
+        assertNotNull(xml.index);
+
+        Recorder b = new Recorder();
+        XmlPatcher fresh = new XmlPatcher(new StringBuilder(xml.asStringBuilder()));
+        fresh.scan(b);
+        assertEquals(b.events, a.events);
+    }
+
+    @Test
+    public void editLog() {
+        EditLog log = new EditLog();
+        log.record(10, 12, 5);  // [10,12) -> 5 chars
+        log.record(2, 2, 1);    // insertion before it
+        log.record(14, 14, 3);  // inside the first one, which is now at [11,16)
+        log.record(30, 31, 0);
+        assertEquals(3, log.size());
+        assertEquals(2, log.start(0));
+        assertEquals(2, log.end(0));
+        assertEquals(10, log.start(1));
+        assertEquals(12, log.end(1));
+        assertEquals(8, log.length(1));
+        // 30 in the current document is 30-1-6=23 in the original
+        assertEquals(23, log.start(2));
+        assertEquals(1+6-1, log.delta());
+
+        // merges everything
+        log.record(0, 40, 1);
+        assertEquals(1, log.size());
+        assertEquals(0, log.start(0));
+        assertEquals(34, log.end(0));
+    }
+}
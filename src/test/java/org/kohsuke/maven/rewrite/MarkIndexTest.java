@@ -0,0 +1,92 @@
+package org.kohsuke.maven.rewrite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MarkIndexTest {
+    /**
+     * Holds thousands of marks while making random edits, and compare them against
+     * the positions computed by the naive rules in {@link Mark#update(int, int, int)}.
+     */
+    @Test
+    public void thousandsOfMarks() {
+        Random r = new Random(1);
+        StringBuilder doc = new StringBuilder();
+        for (int i=0; i<20000; i++)
+            doc.append((char)('a'+r.nextInt(26)));
+        XmlPatcher patcher = new XmlPatcher(new StringBuilder(doc));
+
+        List<Mark> marks = new ArrayList<Mark>();
+        List<Mark> expected = new ArrayList<Mark>();
+        for (int i=0; i<5000; i++) {
+            int s = r.nextInt(doc.length());
+            int e = s+r.nextInt(Math.min(20, doc.length()-s));
+            marks.add(new Mark(patcher,s,e));
+            Mark x = new Mark(patcher,false);
+            x.set(s,e);
+            expected.add(x);
+        }
+        assertEquals(5000, patcher.marks.size());
+
+        for (int i=0; i<2000; i++) {
+            int s = r.nextInt(doc.length());
+            int e = s+r.nextInt(Math.min(10, doc.length()-s));
+            String replacement = r.nextBoolean() ? "" : "xyz".substring(r.nextInt(3));
+
+            Mark m = new Mark(patcher,s,e);
+            m.replace(replacement);
+            if (m.start()!=-1) {
+                doc.replace(s,e,replacement);
+                int delta = replacement.length()-(e-s);
+                for (Mark x : expected)
+                    x.update(s,e,delta);
+            }
+            m.clear();
+
+            if (i%10==0) {
+                // clear some and reuse some
+                int j = r.nextInt(marks.size());
+                marks.get(j).clear();
+                expected.get(j).clear();
+            }
+        }
+
+        int live = 0;
+        for (int i=0; i<marks.size(); i++) {
+            Mark m = marks.get(i);
+            Mark x = expected.get(i);
+            assertEquals(x.s, m.start());
+            assertEquals(x.e, m.end());
+            if (x.isSet()) {
+                live++;
+                assertEquals(doc.substring(x.s,x.e), m.verbatim());
+            }
+        }
+        assertEquals(live, patcher.marks.size());
+        assertEquals(doc.toString(), patcher.asStringBuilder().toString());
+
+        for (Mark m : marks)
+            m.clear();
+        assertEquals(0, patcher.marks.size());
+    }
+
+    /**
+     * A mark that moved should still be removed by {@link Mark#clear()}.
+     */
+    @Test
+    public void clearAfterShift() {
+        XmlPatcher patcher = new XmlPatcher(new StringBuilder("<a><b/><c/></a>"));
+        Mark c = new Mark(patcher,7,11);
+        Mark b = new Mark(patcher,3,7);
+        b.replace("<bb/>");
+        assertEquals("<c/>", c.verbatim());
+        c.clear();
+        b.clear();
+        assertEquals(0, patcher.marks.size());
+    }
+}
@@ -0,0 +1,70 @@
+package org.kohsuke.maven.rewrite;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PatchScriptTest {
+    private static final String POM =
+            "<project>\n" +
+            "  <version>1.0</version>\n" +
+            "  <dependencies>\n" +
+            "    <dependency>\n" +
+            "      <artifactId>a</artifactId>\n" +
+            "      <optional>true</optional>\n" +
+            "    </dependency>\n" +
+            "  </dependencies>\n" +
+            "  <build><plugins><plugin version='1'/><plugin/></plugins></build>\n" +
+            "</project>";
+
+    private static final PatchScript SCRIPT = PatchScript.parse(
+            "# bump everything\n" +
+            "/project/version                   set-text       2.0 & \"up\"\n" +
+            "/project/dependencies/dependency   insert-child   <scope>test</scope>\n" +
+            "//dependency/optional              remove\n" +
+            "\n" +
+            "//plugin                           set-attribute  version \" 2<3 \"\n");
+
+    @Test
+    public void apply() throws Exception {
+        assertEquals(4, SCRIPT.size());
+        for (boolean journaled : new boolean[]{false, true}) {
+            XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(POM));
+            xml.setJournaled(journaled);
+            assertTrue(SCRIPT.applyTo(xml));
+            assertEquals(
+                "<project>\n" +
+                "  <version>2.0 &amp; \"up\"</version>\n" +
+                "  <dependencies>\n" +
+                "    <dependency>\n" +
+                "      <scope>test</scope>\n" +
+                "      <artifactId>a</artifactId>\n" +
+                "      \n" +
+                "    </dependency>\n" +
+                "  </dependencies>\n" +
+                "  <build><plugins><plugin version=' 2&lt;3 '/><plugin version=\" 2&lt;3 \"/></plugins></build>\n" +
+                "</project>",
+                xml.asStringBuilder().toString());
+        }
+    }
+
+    @Test
+    public void fingerprint() throws Exception {
+        assertEquals(SCRIPT.newVisitor().getFingerprint(), SCRIPT.newVisitor().getFingerprint());
+        assertFalse(SCRIPT.newVisitor().getFingerprint().equals(
+                PatchScript.parse("/project/version set-text 3.0").newVisitor().getFingerprint()));
+    }
+
+    @Test
+    public void errors() {
+        for (String s : new String[]{"/a", "/a rename b", "/a remove b", "/a set-text", "a set-text x",
+                                     "/a set-attribute x", "/a set-text \"x", "/a set-text \"x\\q\""}) {
+            try {
+                PatchScript.parse("# comment\n"+s);
+                fail(s);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2: "));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.kohsuke.maven.rewrite;
+
+import org.junit.Test;
+
+import javax.xml.stream.XMLEventFactory;
+
+import static org.junit.Assert.*;
+
+public class PathMatchersTest {
+    private final XMLEventFactory f = XMLEventFactory.newInstance();
+    private final NameTable names = new NameTable();
+
+    private XmlPath path(String... steps) {
+        XmlPath p = null;
+        for (String n : steps)
+            p = new XmlPath(p, names, n.startsWith("{")
+                    ? f.createStartElement("", n.substring(1,n.indexOf('}')), n.substring(n.indexOf('}')+1))
+                    : f.createStartElement("", "", n));
+        return p;
+    }
+
+    @Test
+    public void localNames() {
+        PathMatcher m = PathMatchers.compile("/project/dependencies/dependency");
+        assertTrue(m.apply(path("project", "dependencies", "dependency")));
+        assertTrue(m.apply(path("{urn:x}project", "dependencies", "dependency")));
+        assertFalse(m.apply(path("project", "dependencies")));
+        assertFalse(m.apply(path("project", "dependencies", "dependency", "dependency")));
+        assertFalse(m.apply(null));
+    }
+
+    @Test
+    public void wildcardsAndDescendants() {
+        PathMatcher m = PathMatchers.compile("/project/*/plugin", "//exclusion", "/{urn:x}a//{}b");
+        assertTrue(m.apply(path("project", "build", "plugin")));
+        assertFalse(m.apply(path("project", "build", "plugins", "plugin")));
+        assertTrue(m.apply(path("exclusion")));
+        assertTrue(m.apply(path("project", "dependencies", "dependency", "exclusions", "exclusion")));
+        assertTrue(m.apply(path("{urn:x}a", "b")));
+        assertTrue(m.apply(path("{urn:x}a", "c", "d", "b")));
+        assertFalse(m.apply(path("a", "b")));
+        assertFalse(m.apply(path("{urn:x}a", "{urn:x}b")));
+    }
+
+    @Test
+    public void localNamesAreLiteral() {
+        XmlPath p = path("project", "build", "plugin");
+        assertTrue(PathMatchers.localNames("/project/build/plugin").apply(p));
+        assertTrue(PathMatchers.localNames("/project/build/plugin") instanceof PathMatcher);
+        for (String s : new String[]{"project/build/plugin", "/project/*/plugin", "//plugin", "/project/build/plugin/", "/{}project/build/plugin"})
+            assertFalse(s, PathMatchers.localNames(s).apply(p));
+    }
+
+    @Test
+    public void onlyOnePattern() {
+        PathMatcher all = PathMatchers.compile("/project/*/plugin", "//plugin", "/project/version");
+        PathMatcher first = all.only(0), second = all.only(1), third = all.only(2);
+        XmlPath p = path("project", "build", "plugin");
+        assertTrue(first.apply(p));
+        assertTrue(second.apply(p));
+        assertFalse(third.apply(p));
+        assertFalse(first.apply(path("project", "build", "plugins", "plugin")));
+        assertTrue(second.apply(path("project", "build", "plugins", "plugin")));
+        assertTrue(third.apply(path("project", "version")));
+        assertEquals("[plugin]", second.getRequiredNames().toString());
+        assertEquals("[/project/version]", third.toString());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void relative() {
+        PathMatchers.compile("project/version");
+    }
+
+    @Test
+    public void pathMatches() {
+        XmlPath p = path("project", "dependencies", "dependency");
+        assertTrue(p.matches("/project/dependencies/dependency"));
+        assertFalse(p.matches("/project/dependencies"));
+        assertFalse(p.matches("project/dependencies/dependency"));
+        assertFalse(p.matches("/x/project/dependencies/dependency"));
+        assertFalse(p.getParent().matches("/project/dependencies/dependency"));
+        assertEquals("/project/dependencies/dependency", p.getLocalNames());
+        assertSame(p.getParent().getParent().getName(), path("project").getName());
+    }
+
+    @Test
+    public void requiredNames() {
+        assertEquals("[project, dependencies, dependency]",
+                PathMatchers.compile("/project/dependencies/dependency").getRequiredNames().toString());
+        assertEquals("[project, plugin]",
+                PathMatchers.compile("/project/*/plugin", "/project//plugin").getRequiredNames().toString());
+        assertTrue(PathMatchers.compile("/project/version", "//exclusion").getRequiredNames().isEmpty());
+    }
+}
@@ -0,0 +1,68 @@
+package org.kohsuke.maven.rewrite;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PieceTableBufferTest {
+    @Test
+    public void randomEdits() throws Exception {
+        Random r = new Random(0);
+        StringBuilder expected = new StringBuilder("<project><dependencies/></project>");
+        PieceTableBuffer buf = new PieceTableBuffer(expected.toString());
+
+        for (int i=0; i<5000; i++) {
+            int s = r.nextInt(expected.length()+1);
+            int e = s+r.nextInt(Math.min(8, expected.length()-s+1));
+            String replacement = "x"+i;
+            if (r.nextInt(3)==0)
+                replacement = "";
+
+            expected.replace(s,e,replacement);
+            buf.replace(s,e,replacement);
+
+            assertEquals(expected.length(), buf.length());
+            int p = r.nextInt(expected.length()+1);
+            if (p<expected.length())
+                assertEquals(expected.charAt(p), buf.charAt(p));
+            int q = p+r.nextInt(expected.length()-p+1);
+            assertEquals(expected.substring(p,q), buf.substring(p,q));
+        }
+
+        assertEquals(expected.toString(), buf.toString());
+        assertEquals(expected.toString(), IOUtils.toString(buf.openReader()));
+
+        StringWriter w = new StringWriter();
+        buf.writeTo(w);
+        assertEquals(expected.toString(), w.toString());
+    }
+
+    @Test
+    public void readerIsNotAffectedByLaterEdits() throws Exception {
+        PieceTableBuffer buf = new PieceTableBuffer("<a><b/></a>");
+        Reader r = buf.openReader();
+        buf.replace(3,7,"<c></c>");
+        assertEquals("<a><b/></a>", IOUtils.toString(r));
+        assertEquals("<a><c></c></a>", buf.toString());
+    }
+
+    @Test
+    public void indexOf() {
+        StringBuilder doc = new StringBuilder();
+        for (int i=0; i<20000; i++)
+            doc.append("<dependency/>");
+        PieceTableBuffer buf = new PieceTableBuffer(doc);
+        // split the match across pieces, and across the chunks that the search reads
+        buf.replace(8190, 8190, "<depend");
+        buf.replace(8197, 8197, "encies>");
+        assertEquals(8190, buf.indexOf("<dependencies>"));
+        assertEquals(8190, new StringBuilderBuffer(new StringBuilder(buf.toString())).indexOf("<dependencies>"));
+        assertEquals(-1, buf.indexOf("<dependencies/>"));
+        assertEquals(0, buf.indexOf("<dep"));
+    }
+}
@@ -0,0 +1,104 @@
+package org.kohsuke.maven.rewrite;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kohsuke.maven.rewrite.edit.ReplaceElementText;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("cache", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static XmlVisitor replaceVersion(final String v) {
+        return new ReplaceElementText(PathMatchers.localNames("/project/version")) {
+            @Override
+            public String replace(String current) {
+                return v;
+            }
+
+            @Override
+            public String getFingerprint() {
+                return "version="+v;
+            }
+        };
+    }
+
+    /**
+     * Scans the document with a fresh patcher, and returns the result.
+     */
+    private static String scan(ResultCache cache, String doc, XmlVisitor v, boolean modified, boolean parsed) throws Exception {
+        XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(doc));
+        PatcherStatistics stats = new PatcherStatistics();
+        xml.setMetrics(stats);
+        xml.setResultCache(cache);
+        assertEquals(modified, xml.scan(v));
+        assertEquals(parsed, stats.getEventsParsed()>0);
+        return xml.asStringBuilder().toString();
+    }
+
+    @Test
+    public void hit() throws Exception {
+        ResultCache cache = new ResultCache(dir, 1024*1024);
+        String doc = "<project><version>1.0</version><x/></project>";
+        String expected = "<project><version>2.0</version><x/></project>";
+
+        assertEquals(expected, scan(cache, doc, replaceVersion("2.0"), true, true));
+        assertEquals(expected, scan(cache, doc, replaceVersion("2.0"), true, false));
+
+        // another fingerprint, or another document, misses
+        assertEquals(doc, scan(cache, doc, replaceVersion("1.0"), false, true));
+        assertEquals(doc, scan(cache, expected, replaceVersion("1.0"), true, true));
+
+        // scans that don't change anything are cached, too
+        String other = "<project><versions>x</versions></project>";
+        assertEquals(other, scan(cache, other, replaceVersion("2.0"), false, true));
+        assertEquals(other, scan(cache, other, replaceVersion("2.0"), false, false));
+
+        // visitors without fingerprints are always run
+        XmlVisitor plain = new XmlVisitor() {};
+        scan(cache, doc, plain, false, true);
+        scan(cache, doc, plain, false, true);
+        scan(cache, doc, new CompositeVisitor(replaceVersion("2.0"), plain), true, true);
+    }
+
+    @Test
+    public void eviction() throws Exception {
+        ResultCache cache = new ResultCache(dir, 200);
+        scan(cache, "<project><version>x</version></project>", replaceVersion("2.0"), true, true);
+        // a result that another writer is in the middle of writing
+        File tmp = new File(dir, "abc.tmp");
+        FileUtils.writeStringToFile(tmp, "x");
+        for (int i=0; i<20; i++) {
+            // storing the same result again replaces the file
+            for (int j=0; j<3; j++)
+                cache.put(cache.key("again", new PieceTableBuffer("x")), Collections.<Edit>emptyList());
+            scan(cache, "<project><version>"+i+"</version></project>", replaceVersion("2.0"), true, true);
+        }
+
+        long size = 0;
+        for (File f : dir.listFiles())
+            size += f.length();
+        assertTrue(size<=200);
+        assertTrue(dir.listFiles().length>2);
+        assertTrue(tmp.exists());
+
+        // the latest one is kept
+        scan(cache, "<project><version>19</version></project>", replaceVersion("2.0"), true, false);
+    }
+}
@@ -0,0 +1,881 @@
+package org.kohsuke.maven.rewrite;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
+import org.junit.Test;
+import org.kohsuke.maven.rewrite.edit.InsertInElement;
+import org.kohsuke.maven.rewrite.edit.ReplaceElementText;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class XmlPatcherTest {
+    private static final String POM =
+            "<project>\n" +
+            "  <version>1.0</version>\n" +
+            "  <dependencies>\n" +
+            "    <dependency>\n" +
+            "      <artifactId>a</artifactId>\n" +
+            "    </dependency>\n" +
+            "    <dependency>\n" +
+            "      <artifactId>b</artifactId>\n" +
+            "    </dependency>\n" +
+            "  </dependencies>\n" +
+            "</project>";
+
+    private static XmlVisitor insertOptional() {
+        return new InsertInElement(PathMatchers.localNames("/project/dependencies/dependency")) {
+            @Override
+            protected String insert() {
+                return "<optional>true</optional>";
+            }
+        };
+    }
+
+    private static XmlVisitor insertScope() {
+        return new InsertInElement(PathMatchers.localNames("/project/dependencies/dependency")) {
+            @Override
+            protected String insert() {
+                return "<scope>test</scope>";
+            }
+        };
+    }
+
+    private static XmlVisitor replaceVersion(final String v) {
+        return new ReplaceElementText(PathMatchers.localNames("/project/version")) {
+            @Override
+            public String replace(String current) {
+                return v;
+            }
+        };
+    }
+
+    @Test
+    public void journaledScanProducesSameResult() throws Exception {
+        XmlPatcher immediate = new XmlPatcher(new StringBuilder(POM));
+        assertTrue(immediate.scan(insertOptional()));
+
+        XmlPatcher journaled = new XmlPatcher(new StringBuilder(POM));
+        journaled.setJournaled(true);
+        assertTrue(journaled.scan(insertOptional()));
+
+        assertEquals(immediate.asStringBuilder().toString(), journaled.asStringBuilder().toString());
+
+        List<Edit> edits = journaled.getEdits();
+        assertEquals(2, edits.size());
+        assertTrue(edits.get(0).getStart() < edits.get(1).getStart());
+    }
+
+    @Test
+    public void sameLengthReplacementIsAModification() throws Exception {
+        XmlPatcher xml = new XmlPatcher(new StringBuilder(POM));
+        assertTrue(xml.scan(replaceVersion("2.0")));
+        assertTrue(xml.asStringBuilder().toString().contains("<version>2.0</version>"));
+
+        xml = new XmlPatcher(new StringBuilder(POM));
+        assertFalse(xml.scan(replaceVersion("1.0")));
+    }
+
+    @Test
+    public void compositeScan() throws Exception {
+        XmlPatcher immediate = new XmlPatcher(new StringBuilder(POM));
+        assertTrue(immediate.scan(insertOptional(), insertScope(), replaceVersion("2.0")));
+
+        // visitors that insert at the same place take effect in the order they are given
+        String result = immediate.asStringBuilder().toString();
+        assertTrue(result.contains(
+                "    <dependency>\n" +
+                "      <optional>true</optional>\n" +
+                "      <scope>test</scope>\n" +
+                "      <artifactId>a</artifactId>\n"));
+        assertTrue(result.contains("<version>2.0</version>"));
+
+        XmlPatcher journaled = new XmlPatcher(new StringBuilder(POM));
+        journaled.setJournaled(true);
+        assertTrue(journaled.scan(insertOptional(), insertScope(), replaceVersion("2.0")));
+        assertEquals(result, journaled.asStringBuilder().toString());
+    }
+
+    @Test
+    public void streaming() throws Exception {
+        StringBuilder doc = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n<project>\n  <version>1.0</version>\n  <dependencies>\n");
+        for (int i=0; i<5000; i++)
+            doc.append("    <dependency>\n      <artifactId>a"+i+"</artifactId>\n    </dependency>\n");
+        doc.append("  </dependencies>\n</project>\n");
+
+        XmlPatcher inMemory = new XmlPatcher(new StringBuilder(doc));
+        inMemory.scan(insertOptional(), replaceVersion("2.0"));
+
+        for (boolean nativeTokenizer : new boolean[]{false, true}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            XmlPatcher streaming = new XmlPatcher(new ByteArrayInputStream(doc.toString().getBytes("UTF-8")), out);
+            streaming.setNativeTokenizer(nativeTokenizer);
+            assertTrue(streaming.scan(insertOptional(), replaceVersion("2.0")));
+            assertEquals(inMemory.asStringBuilder().toString(), out.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void streamingKeepsWindowBounded() throws Exception {
+        final int n = 100000;
+        Reader in = new Reader() {
+            private final StringBuilder buf = new StringBuilder("<project>\n  <version>1.0</version>\n  <dependencies>\n");
+            private int i;
+
+            @Override
+            public int read(char[] cbuf, int off, int len) {
+                while (buf.length()<len && i<=n) {
+                    if (i++<n)
+                        buf.append("    <dependency>\n      <artifactId>a").append(i).append("</artifactId>\n    </dependency>\n");
+                    else
+                        buf.append("  </dependencies>\n</project>\n");
+                }
+                if (buf.length()==0)
+                    return -1;
+                len = Math.min(len, buf.length());
+                buf.getChars(0, len, cbuf, off);
+                buf.delete(0, len);
+                return len;
+            }
+
+            @Override
+            public void close() {}
+        };
+        final int[] written = new int[1];
+        Writer out = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                written[0] += len;
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        };
+
+        final StreamingBuffer buffer = new StreamingBuffer(in, out);
+        final int[] peak = new int[1];
+        XmlPatcher xml = new XmlPatcher(buffer);
+        assertTrue(xml.scan(insertOptional(), new XmlVisitor() {
+            @Override
+            public void endElement() {
+                peak[0] = Math.max(peak[0], buffer.getWindowSize());
+            }
+        }));
+        assertTrue(written[0] > n*80);
+        assertTrue("window grew to "+peak[0], peak[0] < 4*16*1024);
+    }
+
+    @Test
+    public void streamingClosesOnFailure() throws Exception {
+        final boolean[] closed = new boolean[2];
+        Reader in = new StringReader(POM) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        Writer out = new StringWriter() {
+            @Override
+            public void close() {
+                closed[1] = true;
+            }
+        };
+        XmlPatcher xml = new XmlPatcher(new StreamingBuffer(in, out));
+        try {
+            xml.scan(new XmlVisitor() {
+                @Override
+                public void startElement() {
+                    throw new IllegalArgumentException();
+                }
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(closed[0]);
+        assertTrue(closed[1]);
+    }
+
+    @Test
+    public void file() throws Exception {
+        // the first one is mapped, the second one has to be decoded
+        for (String name : new String[]{"a", "\u00e9"}) {
+            File f = File.createTempFile("pom", ".xml");
+            try {
+                String doc = POM.replace("<artifactId>a</", "<artifactId>"+name+"</");
+                FileUtils.writeStringToFile(f, doc, "UTF-8");
+
+                XmlPatcher xml = new XmlPatcher(f, true);
+                assertTrue(xml.scan(replaceVersion("2.0"), insertOptional()));
+                xml.writeTo(f);
+
+                XmlPatcher expected = new XmlPatcher(new StringBuilder(doc));
+                expected.scan(replaceVersion("2.0"), insertOptional());
+                assertEquals(expected.asStringBuilder().toString(), FileUtils.readFileToString(f, "UTF-8"));
+            } finally {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        XmlVisitor optional = insertOptional(), version = replaceVersion("2.0");
+        PatcherStatistics stats = new PatcherStatistics();
+        XmlPatcher xml = new XmlPatcher(new StringBuilder(POM));
+        xml.setMetrics(stats);
+        assertTrue(xml.scan(optional, version));
+
+        assertEquals(1, stats.getScans());
+        assertEquals(7, stats.getElementsVisited());
+        assertTrue(stats.getEventsParsed() > stats.getElementsVisited());
+        assertEquals(3, stats.getEditsApplied());
+        assertTrue(stats.getCharactersMoved() > 0);
+        assertTrue(stats.getPeakMarks() > 0);
+        assertTrue(stats.getVisitorTime(optional) > 0);
+        assertTrue(stats.getVisitorTime(version) > 0);
+
+        // the piece table doesn't move text
+        stats = new PatcherStatistics();
+        xml = new XmlPatcher(new PieceTableBuffer(POM));
+        xml.setMetrics(stats);
+        xml.setJournaled(true);
+        assertTrue(xml.scan(insertOptional()));
+        assertEquals(2, stats.getEditsApplied());
+        assertEquals(0, stats.getCharactersMoved());
+    }
+
+    /**
+     * Records elements, and skips the contents of the ones that match.
+     */
+    private static class Skipper extends XmlVisitor {
+        private final String skip;
+        final StringBuilder seen = new StringBuilder();
+
+        Skipper(String skip) {
+            this.skip = skip;
+        }
+
+        @Override
+        public void startElement() {
+            seen.append('<').append(getPath().getName());
+            if (getPath().matches(skip))
+                skipSubtree();
+        }
+
+        @Override
+        public void endElement() {
+            seen.append('/').append(getPath().getName());
+        }
+    }
+
+    @Test
+    public void skipSubtree() throws Exception {
+        StringBuilder doc = new StringBuilder("<project xmlns='urn:pom' xmlns:x='urn:x'>\n  <build>\n");
+        for (int i=0; i<200; i++)
+            doc.append("    <plugin a='&lt;/build>' b=\"/>\"><!-- </build> --><![CDATA[</build>]]><?pi </build>?><x:p/></plugin>\n");
+        doc.append("  </build>\n  <x:version>1.0</x:version>\n</project>\n");
+        String expected = doc.toString().replace(">1.0<", ">2.0<");
+
+        for (int mode=0; mode<5; mode++) {
+            // a piece table can be read from the middle, a string builder can't
+            XmlPatcher xml = mode==0 ? new XmlPatcher(new StringBuilder(doc)) : new XmlPatcher(new PieceTableBuffer(doc));
+            xml.setEventReaderView(mode==2);
+            xml.setNativeTokenizer(mode==4);
+            if (mode==3)
+                xml.scan(new XmlVisitor() {});  // so that the next scan is replayed
+
+            Skipper skipper = new Skipper("/project/build");
+            ReplaceElementText version = new ReplaceElementText(PathMatchers.localNames("/project/version")) {
+                @Override
+                public String replace(String current) {
+                    assertEquals("1.0", current);
+                    return "2.0";
+                }
+
+                @Override
+                public void startElement() {
+                    super.startElement();
+                    if (getPath().matches("/project/build"))
+                        skipSubtree();
+                }
+            };
+            assertTrue(xml.scan(skipper, version));
+            assertEquals("mode "+mode, "<{urn:pom}project<{urn:pom}build/{urn:pom}build<{urn:x}version/{urn:x}version/{urn:pom}project",
+                    skipper.seen.toString());
+            assertEquals(expected, xml.asStringBuilder().toString());
+        }
+    }
+
+    @Test
+    public void compositeSkipsOnlyWhenAllAgree() throws Exception {
+        Skipper a = new Skipper("/project/dependencies");
+        Skipper b = new Skipper("/project/dependencies/dependency");
+        new XmlPatcher(new PieceTableBuffer(POM)).scan(a, b);
+        assertEquals("<project<version/version<dependencies/dependencies/project", a.seen.toString());
+        assertEquals("<project<version/version<dependencies<dependency/dependency<dependency/dependency/dependencies/project",
+                b.seen.toString());
+    }
+
+    @Test
+    public void stop() throws Exception {
+        final StringBuilder seen = new StringBuilder();
+        XmlVisitor stopper = new XmlVisitor() {
+            @Override
+            public void startElement() {
+                seen.append(getPath().getName()).append(' ');
+            }
+
+            @Override
+            public void endElement() {
+                if (getPath().matches("/project/version"))
+                    stop();
+            }
+        };
+        XmlVisitor optional = insertOptional();
+        XmlPatcher xml = new XmlPatcher(new StringBuilder(POM));
+        assertTrue(xml.scan(stopper, optional));
+        assertEquals("project version ", seen.toString());
+
+        // the other visitor still goes through the whole document
+        XmlPatcher expected = new XmlPatcher(new StringBuilder(POM));
+        expected.scan(insertOptional());
+        assertEquals(expected.asStringBuilder().toString(), xml.asStringBuilder().toString());
+
+        // when the only visitor stops, a streaming scan writes out the rest as is
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlPatcher streaming = new XmlPatcher(new ByteArrayInputStream(POM.getBytes("UTF-8")), out);
+        assertTrue(streaming.scan(new ReplaceElementText(PathMatchers.localNames("/project/version")) {
+            @Override
+            public String replace(String current) {
+                return "2.0";
+            }
+
+            @Override
+            public void endElement() {
+                super.endElement();
+                stop();
+            }
+        }));
+        assertEquals(POM.replace("1.0", "2.0"), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void documentsThatCannotMatchAreNotParsed() throws Exception {
+        PatcherStatistics stats = new PatcherStatistics();
+        XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(POM.replace("dependenc", "plugin")));
+        xml.setMetrics(stats);
+        assertFalse(xml.scan(insertOptional()));
+        assertEquals(0, stats.getEventsParsed());
+
+        // one visitor whose names are in the document is enough to parse it
+        assertTrue(xml.scan(insertOptional(), replaceVersion("2.0")));
+        assertTrue(stats.getEventsParsed() > 0);
+
+        // a scan that's ruled out keeps the result of the earlier scans
+        assertTrue(xml.scan(insertScope()));
+    }
+
+    @Test
+    public void changesAndDiff() throws Exception {
+        XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(POM));
+        assertEquals("", xml.getDiff("pom.xml"));
+        xml.scan(replaceVersion("2.0"));
+        xml.setJournaled(true);
+        xml.scan(insertOptional());
+
+        List<Edit> changes = xml.getChanges();
+        assertEquals(3, changes.size());
+        assertEquals("2.0", changes.get(0).getReplacement());
+        assertEquals("1.0", POM.substring(changes.get(0).getStart(), changes.get(0).getEnd()));
+
+        assertEquals(
+            "--- a/pom.xml\n" +
+            "+++ b/pom.xml\n" +
+            "@@ -1,10 +1,12 @@\n" +
+            " <project>\n" +
+            "-  <version>1.0</version>\n" +
+            "+  <version>2.0</version>\n" +
+            "   <dependencies>\n" +
+            "     <dependency>\n" +
+            "+      <optional>true</optional>\n" +
+            "       <artifactId>a</artifactId>\n" +
+            "     </dependency>\n" +
+            "     <dependency>\n" +
+            "+      <optional>true</optional>\n" +
+            "       <artifactId>b</artifactId>\n" +
+            "     </dependency>\n" +
+            "   </dependencies>\n",
+            xml.getDiff("pom.xml"));
+    }
+
+    @Test
+    public void saveInPlace() throws Exception {
+        // the mapped one is replaced, while the others are written in place
+        for (String name : new String[]{"a", "\u00e9", null}) {
+            boolean map = name==null;
+            File f = File.createTempFile("pom", ".xml");
+            try {
+                StringBuilder comment = new StringBuilder("<!--");
+                for (int i=0; i<1000; i++)
+                    comment.append(" padding");
+                String doc = comment+"-->\n"+POM.replace("<artifactId>a</", "<artifactId>"+(map ? "a" : name)+"</");
+                FileUtils.writeStringToFile(f, doc, "UTF-8");
+
+                // the same length, then a different length
+                XmlPatcher xml = new XmlPatcher(f, map);
+                for (XmlVisitor v : new XmlVisitor[]{replaceVersion("2.0"), insertOptional()}) {
+                    String before = FileUtils.readFileToString(f, "UTF-8");
+                    XmlPatcher expected = new XmlPatcher(new StringBuilder(before));
+                    expected.scan(v);
+
+                    // if the file is replaced, the stream opened before that keeps reading the old one
+                    FileInputStream in = new FileInputStream(f);
+                    try {
+                        assertTrue(xml.scan(v));
+                        xml.save();
+                        assertEquals(map ? before : expected.asStringBuilder().toString(), IOUtils.toString(in, "UTF-8"));
+                    } finally {
+                        in.close();
+                    }
+                    assertTrue(xml.getChanges().isEmpty());
+                }
+                assertEquals(xml.asStringBuilder().toString(), FileUtils.readFileToString(f, "UTF-8"));
+            } finally {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void saveThroughLinks() throws Exception {
+        for (boolean map : new boolean[]{false, true}) {
+            File f = File.createTempFile("pom", ".xml");
+            File symlink = new File(f.getPath()+".sym"), hardlink = new File(f.getPath()+".hard");
+            try {
+                FileUtils.writeStringToFile(f, POM, "UTF-8");
+                Assume.assumeTrue(new ProcessBuilder("ln", "-s", f.getAbsolutePath(), symlink.getPath()).start().waitFor()==0);
+                Assume.assumeTrue(new ProcessBuilder("ln", f.getPath(), hardlink.getPath()).start().waitFor()==0);
+
+                // too big a change to write in place
+                XmlPatcher xml = new XmlPatcher(symlink, map);
+                assertTrue(xml.scan(insertOptional()));
+                xml.save();
+
+                String expected = xml.asStringBuilder().toString();
+                assertEquals(f.getCanonicalFile(), symlink.getCanonicalFile());
+                assertEquals(expected, FileUtils.readFileToString(f, "UTF-8"));
+                // a mapped file is replaced, which leaves the other link to the old file
+                assertEquals(map ? POM : expected, FileUtils.readFileToString(hardlink, "UTF-8"));
+            } finally {
+                f.delete();
+                symlink.delete();
+                hardlink.delete();
+            }
+        }
+    }
+
+    @Test
+    public void utf8FileIsCopiedByteForByte() throws Exception {
+        StringBuilder padding = new StringBuilder();
+        for (int i=0; i<100; i++)
+            padding.append("<!-- padding -->\r\n");
+        // mostly ASCII, which is mapped, and mostly non-ASCII, which is decoded
+        StringBuilder cjk = new StringBuilder();
+        for (int i=0; i<100; i++)
+            cjk.append("\u65e5\u672c\u8a9e");
+        for (String name : new String[]{"caf\u00e9 \u65e5\u672c", cjk.toString()}) {
+            String doc = POM.replace("<artifactId>a</", "<artifactId>"+name+"</");
+            if (name.startsWith("c"))
+                doc = doc.replace("<dependencies>", "<dependencies>"+padding);
+            byte[] bom = {(byte)0xEF,(byte)0xBB,(byte)0xBF};
+
+            File f = File.createTempFile("pom", ".xml");
+            File g = File.createTempFile("pom", ".xml");
+            try {
+                FileUtils.writeByteArrayToFile(f, concat(bom, doc.getBytes("UTF-8")));
+                XmlPatcher xml = new XmlPatcher(f, true);
+                assertTrue(xml.scan(replaceVersion("2.\u00e9")));
+                xml.writeTo(g);
+
+                String expected = doc.replace("1.0", "2.\u00e9");
+                byte[] actual = FileUtils.readFileToByteArray(g);
+                if (name.startsWith("c"))
+                    assertArrayEquals(concat(bom, expected.getBytes("UTF-8")), actual);
+                else
+                    assertEquals(expected, new String(actual, "UTF-8"));
+            } finally {
+                f.delete();
+                g.delete();
+            }
+        }
+    }
+
+    @Test
+    public void attributes() throws Exception {
+        String doc = "<project xmlns:m='urn:m'><plugin version=\"1.0\" m:id = 'x'/><plugin/><plugin id=\"version\"></plugin></project>";
+        for (boolean journaled : new boolean[]{false, true}) {
+            XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(doc));
+            xml.setJournaled(journaled);
+            assertTrue(xml.scan(new XmlVisitor() {
+                @Override
+                public void startElement() {
+                    XmlPatcher p = getPatcher();
+                    if (!getPath().getName().getLocalPart().equals("plugin"))
+                        return;
+                    Mark v = p.getAttributeValue("version");
+                    if (v!=null) {
+                        assertEquals("1.0", v.verbatim());
+                        v.replace("1.10");
+                        v.clear();
+                    }
+                    Mark n = p.getAttributeName("m:id");
+                    if (n!=null) {
+                        n.replace("m:key");
+                        n.clear();
+                    }
+                    assertNull(p.getAttributeValue("id:"));
+                }
+            }));
+            assertEquals("<project xmlns:m='urn:m'><plugin version=\"1.10\" m:key = 'x'/><plugin/><plugin id=\"version\"></plugin></project>",
+                    xml.asStringBuilder().toString());
+        }
+    }
+
+    @Test
+    public void startTagsFollowEdits() throws Exception {
+        String doc = "<project a='1'><version>1.0</version><dependencies b='2'><dependency/></dependencies></project>";
+        for (boolean journaled : new boolean[]{false, true}) {
+            final List<String> seen = new ArrayList<String>();
+            XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(doc));
+            xml.setJournaled(journaled);
+            xml.scan(new XmlVisitor() {
+                Mark version;
+
+                @Override
+                public void startElement() {
+                    if (getPath().matches("/project/version")) {
+                        version = getPatcher().mark();
+                        version.set();
+                    }
+                    if (getPath().matches("/project/dependencies/dependency")) {
+                        // the start tags of the open elements are read after this edit in front of them
+                        version.replace("<version x='y'>");
+                        XmlPath p = getPath().getParent();
+                        seen.add(p.getTag().getAttributeByName(new QName("b")).getValue());
+                        seen.add(p.getParent().getTag().getAttributeByName(new QName("a")).getValue());
+                    }
+                }
+            });
+            assertEquals(Arrays.asList("2", "1"), seen);
+            assertEquals(doc.replace("<version>", "<version x='y'>"), xml.asStringBuilder().toString());
+        }
+    }
+
+    @Test
+    public void startTagsCutByEdits() throws Exception {
+        String doc = "<project a='1'><version>1.0</version><dependencies b='2'><dependency/></dependencies></project>";
+        for (boolean journaled : new boolean[]{false, true}) {
+            final List<String> seen = new ArrayList<String>();
+            XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(doc));
+            xml.setJournaled(journaled);
+            xml.scan(new XmlVisitor() {
+                Mark version;
+
+                @Override
+                public void startElement() {
+                    if (getPath().matches("/project/version")) {
+                        version = getPatcher().mark();
+                        version.set();
+                    }
+                    if (getPath().matches("/project/dependencies/dependency")) {
+                        // this edit rewrites the start tag of an open element, which keeps the tag as it was read
+                        version.toCurrent().replace("2.0</version><dependencies b='3'>");
+                        seen.add(getPath().getParent().getTag().getAttributeByName(new QName("b")).getValue());
+                    }
+                }
+            });
+            assertEquals(Arrays.asList("2"), seen);
+            assertEquals(doc.replace("1.0", "2.0").replace("'2'", "'3'"), xml.asStringBuilder().toString());
+        }
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        File f = File.createTempFile("pom", ".xml");
+        try {
+            FileUtils.writeStringToFile(f, POM, "UTF-8");
+            final XmlPatcher xml = new XmlPatcher(f, true);
+            final XmlPatcher snapshot = xml.snapshot();
+
+            // scan the snapshot while the live document is edited
+            final String[] versions = new String[2];
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    for (int i=0; i<100; i++) {
+                        try {
+                            snapshot.scan(new ReplaceElementText(PathMatchers.localNames("/project/version")) {
+                                @Override
+                                public String replace(String current) {
+                                    versions[0] = current;
+                                    return current;
+                                }
+                            });
+                        } catch (XMLStreamException e) {
+                            versions[1] = e.toString();
+                        }
+                    }
+                }
+            };
+            t.start();
+            for (int i=0; i<100; i++)
+                xml.scan(replaceVersion("2."+i));
+            t.join();
+            assertEquals("1.0", versions[0]);
+            assertNull(versions[1]);
+
+            // the snapshot keeps the text even after the file is written
+            xml.save();
+            assertEquals(POM, snapshot.asStringBuilder().toString());
+            assertTrue(FileUtils.readFileToString(f, "UTF-8").contains("<version>2.99</version>"));
+
+            try {
+                snapshot.scan(replaceVersion("3.0"));
+                fail();
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void snapshotPerThread() throws Exception {
+        XmlPatcher xml = new XmlPatcher(new StringBuilder(POM));
+        final XmlPatcher shared = xml.snapshot();
+        assertSame(shared.xml, xml.snapshot().xml);    // no edits in between, so no need for another copy
+
+        final List<String> versions = Collections.synchronizedList(new ArrayList<String>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[2];
+        for (int n=0; n<threads.length; n++) {
+            threads[n] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // each thread scans the same document through its own snapshot
+                        XmlPatcher mine = shared.snapshot();
+                        for (int i=0; i<100; i++) {
+                            mine.scan(new ReplaceElementText(PathMatchers.localNames("/project/version")) {
+                                @Override
+                                public String replace(String current) {
+                                    versions.add(current);
+                                    return current;
+                                }
+                            });
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[n].start();
+        }
+        for (int i=0; i<100; i++)
+            xml.scan(replaceVersion("2."+i));
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(200, versions.size());
+        assertEquals(Collections.singleton("1.0"), new HashSet<String>(versions));
+        assertFalse(shared.xml==xml.snapshot().xml);
+    }
+
+    @Test
+    public void rollback() throws Exception {
+        XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(POM));
+        Checkpoint outer = xml.checkpoint();
+        xml.scan(replaceVersion("2.0"));
+        Checkpoint inner = xml.checkpoint();
+        xml.setJournaled(true);
+        xml.scan(insertOptional());
+        assertTrue(xml.asStringBuilder().toString().contains("<optional>"));
+
+        xml.rollback(inner);
+        assertEquals(POM.replace("1.0", "2.0"), xml.asStringBuilder().toString());
+        assertTrue(xml.isModified());
+        assertEquals(1, xml.getChanges().size());
+        try {
+            xml.commit(inner);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        xml.rollback(outer);
+        assertEquals(POM, xml.asStringBuilder().toString());
+        assertFalse(xml.isModified());
+        assertTrue(xml.getChanges().isEmpty());
+        assertEquals("", xml.getDiff("pom.xml"));
+
+        // in the middle of a scan, for both the direct and the journaled edits
+        for (boolean journaled : new boolean[]{false, true}) {
+            xml = new XmlPatcher(new PieceTableBuffer(POM));
+            xml.setJournaled(journaled);
+            assertTrue(xml.scan(replaceVersion("2.0"), new InsertInElement(PathMatchers.localNames("/project/dependencies/dependency")) {
+                Checkpoint c;
+                Mark version;
+
+                @Override
+                public void startElement() {
+                    if (getPath().getName().getLocalPart().equals("version")) {
+                        version = getPatcher().mark();
+                        version.set();
+                    }
+                    if (getPath().getName().getLocalPart().equals("dependencies"))
+                        c = getPatcher().checkpoint();
+                    super.startElement();
+                }
+
+                @Override
+                public void endElement() {
+                    super.endElement();
+                    if (getPath().getName().getLocalPart().equals("dependencies")) {
+                        // changed our mind
+                        getPatcher().rollback(c);
+                        assertEquals("<version>", version.verbatim());
+                        version.clear();
+                    }
+                }
+
+                @Override
+                protected String insert() {
+                    return "<optional>true</optional>";
+                }
+            }));
+            assertEquals(POM.replace("1.0", "2.0"), xml.asStringBuilder().toString());
+            assertEquals(1, xml.getChanges().size());
+        }
+    }
+
+    @Test
+    public void nativeTokenizer() throws Exception {
+        String doc = "<?xml version='1.0'?>\r\n" +
+                "<!DOCTYPE project [ <!ENTITY x \"]>\"> ]>\r\n" +
+                "<project xmlns='urn:pom' xmlns:m='urn:m'>\r\n" +
+                "  <!-- <version> -->\r\n" +
+                "  <version>1.0</version >\r\n" +
+                "  <m:x a=\"&quot;\" b='>'/><![CDATA[<y/>]]><?pi?>\r\n" +
+                "</project>\r\n";
+
+        final List<String> seen = new ArrayList<String>();
+        XmlVisitor recorder = new XmlVisitor() {
+            @Override
+            public void startElement() {
+                seen.add(getPath().getName()+" "+getPatcher().getLast().verbatim());
+            }
+
+            @Override
+            public void endElement() {
+                seen.add(getPatcher().getLast().verbatim());
+            }
+        };
+        XmlPatcher xml = new XmlPatcher(new PieceTableBuffer(doc));
+        xml.setNativeTokenizer(true);
+        xml.setIndexed(false);
+        assertTrue(xml.scan(recorder, replaceVersion("2.0")));
+        assertEquals(doc.replace("1.0<", "2.0<"), xml.asStringBuilder().toString());
+        assertEquals(Arrays.asList(
+                "{urn:pom}project <project xmlns='urn:pom' xmlns:m='urn:m'>",
+                "{urn:pom}version <version>",
+                "</version >",
+                "{urn:m}x ",    // <m:x/> is an empty start tag followed by the end tag that covers it
+                "<m:x a=\"&quot;\" b='>'/>",
+                "</project>"), seen);
+
+        // comments and processing instructions in the internal subset. an entity isn't expanded into elements,
+        // while StAX parsers do expand it
+        doc = "<!DOCTYPE project [ <!-- don't --> <?pi ']'?> <!ENTITY dep \"<dependency/>\"> ]>\n" +
+                "<project><dependencies>&dep;</dependencies></project>";
+        for (boolean nativeTokenizer : new boolean[]{true, false}) {
+            final List<String> names = new ArrayList<String>();
+            xml = new XmlPatcher(new PieceTableBuffer(doc));
+            xml.setNativeTokenizer(nativeTokenizer);
+            assertFalse(xml.scan(new XmlVisitor() {
+                @Override
+                public void startElement() {
+                    names.add(getPath().getLocalNames());
+                }
+            }));
+            if (nativeTokenizer)
+                assertEquals(Arrays.asList("/project", "/project/dependencies"), names);
+            else
+                assertEquals(Arrays.asList("/project", "/project/dependencies", "/project/dependencies/dependency"), names);
+        }
+
+        // edits come out the same as with StAX
+        for (boolean journaled : new boolean[]{false, true}) {
+            XmlPatcher expected = new XmlPatcher(new PieceTableBuffer(POM));
+            expected.scan(insertOptional(), insertScope(), replaceVersion("2.0"));
+            xml = new XmlPatcher(new PieceTableBuffer(POM));
+            xml.setNativeTokenizer(true);
+            xml.setJournaled(journaled);
+            assertTrue(xml.scan(insertOptional(), insertScope(), replaceVersion("2.0")));
+            assertEquals(expected.asStringBuilder().toString(), xml.asStringBuilder().toString());
+        }
+
+        // deep documents with many names, where the same prefix is bound to different URIs
+        StringBuilder deep = new StringBuilder();
+        for (int i=0; i<100; i++)
+            deep.append("<p:e").append(i%60).append(" xmlns:p='urn:").append(i%7).append("'>");
+        for (int i=99; i>=0; i--)
+            deep.append("</p:e").append(i%60).append(">");
+        List<String> expected = null;
+        for (boolean nativeTokenizer : new boolean[]{false, true}) {
+            seen.clear();
+            xml = new XmlPatcher(new PieceTableBuffer(deep.toString()));
+            xml.setNativeTokenizer(nativeTokenizer);
+            xml.scan(recorder);
+            assertEquals(200, seen.size());
+            if (expected==null)
+                expected = new ArrayList<String>(seen);
+            else
+                assertEquals(expected, seen);
+        }
+
+        // a document that isn't well-formed ends the scan there
+        seen.clear();
+        xml = new XmlPatcher(new PieceTableBuffer("<project><version>1.0</versio></project>"));
+        xml.setNativeTokenizer(true);
+        assertFalse(xml.scan(recorder));
+        assertEquals(Arrays.asList("project <project>", "version <version>"), seen);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] r = new byte[a.length+b.length];
+        System.arraycopy(a,0,r,0,a.length);
+        System.arraycopy(b,0,r,a.length,b.length);
+        return r;
+    }
+}